@@ -0,0 +1,335 @@
+package com.apache.spark.external.benchmark;
+
+import com.apache.spark.external.Compaction;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.sql.SparkSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the whole compaction end to end in a local SparkSession against synthetic small files on the local filesystem.
+ *
+ * For every combination of the given serializations, compressions and compaction strategies the input is generated
+ * once and compacted warmup + iterations times, each time into an empty output path. The measured iterations report
+ * input files and MB per second over the wall clock time of the run, the driver listing time and how close the mean
+ * output file size came to the target size, the last two taken from the metrics report the compaction writes to its
+ * output path. Every run reads its output back and fails the scenario unless it holds as many records as the
+ * generated input, so a faster but lossy change does not pass as an improvement. One summary line per scenario shows
+ * the medians; --report also writes every measurement as JSON so that runs before and after a change can be compared.
+ */
+public class CompactionBenchmark {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CompactionBenchmark.class);
+
+	private static final String WORK_DIR = "work-dir";
+	private static final String SERIALIZATIONS = "serializations";
+	private static final String COMPRESSIONS = "compressions";
+	private static final String STRATEGIES = "strategies";
+	private static final String ITERATIONS = "iterations";
+	private static final String WARMUP = "warmup";
+	private static final String MASTER = "master";
+	private static final String REPORT = "report";
+	private static final String DEFAULT_WORK_DIR = "/tmp/spark-compaction-benchmark";
+	private static final String DEFAULT_SERIALIZATIONS = "text,parquet,avro";
+	private static final String DEFAULT_COMPRESSIONS = "none,gzip";
+	private static final String DEFAULT_STRATEGIES = "default,bin_packing";
+	private static final String DEFAULT_MASTER = "local[*]";
+	private static final String METRICS_FILE = "_compaction_metrics.json";
+	private static final String APP_NAME = "SPARK_COMPACTION_BENCHMARK";
+	private static final double MB = 1024.0 * 1024.0;
+
+	private final Configuration conf = new Configuration();
+	private final SmallFileGenerator generator = new SmallFileGenerator(conf);
+	private final Path workDir;
+	private final int iterations;
+	private final int warmup;
+
+	public CompactionBenchmark(Path workDir, int iterations, int warmup) {
+		this.workDir = workDir;
+		this.iterations = iterations;
+		this.warmup = warmup;
+	}
+
+	public SmallFileGenerator getGenerator() {
+		return generator;
+	}
+
+	/**
+	 * Generates the input of one serialization and compression and compacts it with every strategy. A scenario that
+	 * fails, e.g. text with snappy on a machine without the Hadoop native libraries, is logged and reported as failed.
+	 */
+	public List<Measurement> run(SparkSession spark, String serialization, String compression, List<String> strategies) {
+		String scenario = serialization + "_" + compression;
+		List<Measurement> measurements = new ArrayList<>();
+
+		SmallFileGenerator.GeneratedInput input;
+		try {
+			generator.setSerialization(serialization);
+			generator.setCompression(compression);
+			input = generator.generate(new Path(workDir, "input/" + scenario));
+		} catch (IOException | RuntimeException e) {
+			LOGGER.error("Could not generate the input of " + scenario, e);
+			for (String strategy : strategies) {
+				measurements.add(Measurement.failed(serialization, compression, strategy, e.toString()));
+			}
+			return measurements;
+		}
+
+		for (String strategy : strategies) {
+			Path output = new Path(workDir, "output/" + scenario + "_" + strategy);
+			String[] args = {
+					"--input-path", input.getRoot().toString(),
+					"--output-path", output.toString(),
+					"--input-serialization", serialization,
+					"--input-compression", compression,
+					"--compaction-strategy", strategy};
+
+			for (int i = 0; i < warmup + iterations; i++) {
+				try {
+					Measurement measurement = this.measure(spark, args, input, output, serialization, compression, strategy);
+					if (i >= warmup) {
+						measurements.add(measurement);
+					}
+				} catch (IOException | RuntimeException e) {
+					LOGGER.error("Compaction benchmark failed for " + scenario + " with " + strategy, e);
+					measurements.add(Measurement.failed(serialization, compression, strategy, e.toString()));
+					break;
+				}
+			}
+		}
+		return measurements;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Measurement measure(SparkSession spark, String[] args, SmallFileGenerator.GeneratedInput input, Path output,
+								String serialization, String compression, String strategy) throws IOException {
+		FileSystem fs = output.getFileSystem(conf);
+		fs.delete(output, true);
+
+		long start = System.currentTimeMillis();
+		new Compaction().compact(spark, args);
+		long duration = Math.max(1, System.currentTimeMillis() - start);
+
+		long records = countRecords(spark, output, serialization);
+		if (records != input.getRecords()) {
+			throw new IllegalStateException("The output holds " + records + " records instead of the "
+					+ input.getRecords() + " generated");
+		}
+
+		Map<String, Object> report;
+		try (InputStream in = fs.open(new Path(output, METRICS_FILE))) {
+			report = new ObjectMapper().readValue(in, Map.class);
+		}
+		Map<String, Object> phases = (Map<String, Object>) report.get("phases_ms");
+		Map<String, Object> outputReport = (Map<String, Object>) report.get("output");
+
+		Measurement measurement = new Measurement(serialization, compression, strategy, null);
+		measurement.durationMillis = duration;
+		measurement.records = records;
+		measurement.filesPerSecond = input.getFiles() * 1000.0 / duration;
+		measurement.mbPerSecond = input.getStoredBytes() / MB * 1000.0 / duration;
+		measurement.listingMillis = ((Number) phases.getOrDefault("listing", 0)).longValue();
+		measurement.outputFiles = ((Number) outputReport.get("files")).intValue();
+		measurement.meanToTargetRatio = ((Number) outputReport.get("mean_to_target_ratio")).doubleValue();
+		LOGGER.info("Measured " + measurement);
+		return measurement;
+	}
+
+	// The compaction keeps the input serialization, so the output is read back with it.
+	private static long countRecords(SparkSession spark, Path output, String serialization) {
+		switch (serialization) {
+			case SmallFileGenerator.PARQUET:
+				return spark.read().parquet(output.toString()).count();
+			case SmallFileGenerator.AVRO:
+				return spark.read().format("com.databricks.spark.avro").load(output.toString()).count();
+			default:
+				return spark.read().textFile(output.toString()).count();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		Options options = new Options();
+		Option option = new Option("w", WORK_DIR, true,
+				"The local directory for the generated input and the output\n(required : false, default : " + DEFAULT_WORK_DIR + ")");
+		option.setRequired(false);
+		options.addOption(option);
+
+		option = new Option("s", SERIALIZATIONS, true,
+				"The input serializations to benchmark, comma separated\n(avro, parquet, text)\n(required : false, default : " + DEFAULT_SERIALIZATIONS + ")");
+		option.setRequired(false);
+		options.addOption(option);
+
+		option = new Option("c", COMPRESSIONS, true,
+				"The input compressions to benchmark, comma separated\n(none, snappy, gzip, bzip2)\n(required : false, default : " + DEFAULT_COMPRESSIONS + ")");
+		option.setRequired(false);
+		options.addOption(option);
+
+		option = new Option("cs", STRATEGIES, true,
+				"The compaction strategies to benchmark, comma separated\n(default, size_range, bin_packing)\n(required : false, default : " + DEFAULT_STRATEGIES + ")");
+		option.setRequired(false);
+		options.addOption(option);
+
+		option = new Option("it", ITERATIONS, true, "The measured runs of every scenario\n(required : false, default : 3)");
+		option.setRequired(false);
+		options.addOption(option);
+
+		option = new Option("wu", WARMUP, true,
+				"The unmeasured runs of every scenario before the measured ones\n(required : false, default : 1)");
+		option.setRequired(false);
+		options.addOption(option);
+
+		option = new Option("m", MASTER, true, "The Spark master\n(required : false, default : " + DEFAULT_MASTER + ")");
+		option.setRequired(false);
+		options.addOption(option);
+
+		option = new Option("r", REPORT, true, "A local file to write every measurement to as JSON\n(required : false)");
+		option.setRequired(false);
+		options.addOption(option);
+
+		SmallFileGenerator.addOptions(options);
+
+		CommandLine line;
+		try {
+			line = new GnuParser().parse(options, args);
+		} catch (ParseException e) {
+			new HelpFormatter().printHelp(CompactionBenchmark.class.getSimpleName(), e.getMessage(), options, "");
+			System.exit(1);
+			return;
+		}
+
+		CompactionBenchmark benchmark = new CompactionBenchmark(
+				new Path(new File(line.getOptionValue(WORK_DIR, DEFAULT_WORK_DIR)).getAbsoluteFile().toURI()),
+				Integer.parseInt(line.getOptionValue(ITERATIONS, "3")),
+				Integer.parseInt(line.getOptionValue(WARMUP, "1")));
+		benchmark.getGenerator().setOptions(line);
+
+		SparkSession spark = SparkSession
+				.builder()
+				.master(line.getOptionValue(MASTER, DEFAULT_MASTER))
+				.appName(APP_NAME)
+				.config("spark.ui.enabled", false)
+				.getOrCreate();
+
+		List<Measurement> measurements = new ArrayList<>();
+		List<String> strategies = split(line.getOptionValue(STRATEGIES, DEFAULT_STRATEGIES));
+		try {
+			for (String serialization : split(line.getOptionValue(SERIALIZATIONS, DEFAULT_SERIALIZATIONS))) {
+				for (String compression : split(line.getOptionValue(COMPRESSIONS, DEFAULT_COMPRESSIONS))) {
+					measurements.addAll(benchmark.run(spark, serialization, compression, strategies));
+				}
+			}
+		} finally {
+			spark.stop();
+		}
+
+		if (line.hasOption(REPORT)) {
+			List<Map<String, Object>> report = new ArrayList<>();
+			for (Measurement measurement : measurements) {
+				report.add(measurement.toMap());
+			}
+			new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(new File(line.getOptionValue(REPORT)), report);
+		}
+		printSummary(measurements);
+	}
+
+	private static List<String> split(String values) {
+		List<String> result = new ArrayList<>();
+		for (String value : values.split(",")) {
+			if (!value.trim().isEmpty()) {
+				result.add(value.trim());
+			}
+		}
+		return result;
+	}
+
+	// One line per scenario with the median of its measured runs.
+	private static void printSummary(List<Measurement> measurements) {
+		Map<String, List<Measurement>> scenarios = new LinkedHashMap<>();
+		for (Measurement measurement : measurements) {
+			String scenario = measurement.serialization + "/" + measurement.compression + "/" + measurement.strategy;
+			scenarios.computeIfAbsent(scenario, key -> new ArrayList<>()).add(measurement);
+		}
+
+		System.out.println(String.format("%-32s %10s %10s %12s %12s %14s", "scenario", "files/s", "MB/s", "listing ms",
+				"output files", "mean/target"));
+		for (Map.Entry<String, List<Measurement>> scenario : scenarios.entrySet()) {
+			List<Measurement> runs = scenario.getValue();
+			if (runs.get(runs.size() - 1).error != null) {
+				System.out.println(String.format("%-32s FAILED: %s", scenario.getKey(), runs.get(runs.size() - 1).error));
+				continue;
+			}
+			Collections.sort(runs, (a, b) -> Long.compare(a.durationMillis, b.durationMillis));
+			Measurement median = runs.get(runs.size() / 2);
+			System.out.println(String.format("%-32s %10.1f %10.2f %12d %12d %14.3f", scenario.getKey(), median.filesPerSecond,
+					median.mbPerSecond, median.listingMillis, median.outputFiles, median.meanToTargetRatio));
+		}
+	}
+
+	public static class Measurement {
+
+		private final String serialization;
+		private final String compression;
+		private final String strategy;
+		private final String error;
+		private long durationMillis;
+		private long records;
+		private double filesPerSecond;
+		private double mbPerSecond;
+		private long listingMillis;
+		private int outputFiles;
+		private double meanToTargetRatio;
+
+		public Measurement(String serialization, String compression, String strategy, String error) {
+			this.serialization = serialization;
+			this.compression = compression;
+			this.strategy = strategy;
+			this.error = error;
+		}
+
+		static Measurement failed(String serialization, String compression, String strategy, String error) {
+			return new Measurement(serialization, compression, strategy, error);
+		}
+
+		public Map<String, Object> toMap() {
+			Map<String, Object> map = new LinkedHashMap<>();
+			map.put("serialization", serialization);
+			map.put("compression", compression);
+			map.put("compaction_strategy", strategy);
+			if (error != null) {
+				map.put("error", error);
+				return map;
+			}
+			map.put("duration_ms", durationMillis);
+			map.put("records", records);
+			map.put("files_per_second", filesPerSecond);
+			map.put("mb_per_second", mbPerSecond);
+			map.put("listing_ms", listingMillis);
+			map.put("output_files", outputFiles);
+			map.put("mean_to_target_ratio", meanToTargetRatio);
+			return map;
+		}
+
+		@Override
+		public String toString() {
+			return toMap().toString();
+		}
+	}
+}
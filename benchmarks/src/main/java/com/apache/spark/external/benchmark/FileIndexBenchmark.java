@@ -0,0 +1,100 @@
+package com.apache.spark.external.benchmark;
+
+import com.apache.spark.external.FileIndex;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Microbenchmarks of the input listing on a generated tree of small files on the local filesystem: a full scan with
+ * a varying number of listing threads, and a rescan that reuses the listings kept in a ListingCache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileIndexBenchmark {
+
+	@Param({"10000"})
+	public int fileCount;
+
+	@Param({"100"})
+	public int directories;
+
+	@Param({"1", "4", "16"})
+	public int threads;
+
+	private FileSystem fs;
+	private Path root;
+	private CompressionCodecFactory codecFactory;
+	private Map<String, String> serializationExtensions;
+	private FileIndex.ListingCache cache;
+
+	@Setup
+	public void setUp() throws IOException {
+		Configuration conf = new Configuration();
+		SmallFileGenerator generator = new SmallFileGenerator(conf);
+		generator.setFileCount(fileCount);
+		generator.setDirectories(directories);
+		generator.setFileSize(1024);
+		generator.setDistribution(SmallFileGenerator.FIXED);
+		generator.setCompression(SmallFileGenerator.GZIP);
+
+		File directory = Files.createTempDirectory("file-index-benchmark").toFile();
+		root = new Path(directory.toURI());
+		generator.generate(root);
+
+		fs = root.getFileSystem(conf);
+		codecFactory = new CompressionCodecFactory(conf);
+		serializationExtensions = new HashMap<>();
+		serializationExtensions.put(SmallFileGenerator.PARQUET, ".parquet");
+		serializationExtensions.put(SmallFileGenerator.AVRO, ".avro");
+
+		// Every generated file is older than now, so the first scan keeps the listing of every directory.
+		cache = new FileIndex.ListingCache();
+		cache.setCacheableBefore(System.currentTimeMillis() + 1000);
+		FileIndex.scan(fs, this.roots(), codecFactory, serializationExtensions, threads, cache);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		fs.delete(root, true);
+	}
+
+	private FileStatus[] roots() throws IOException {
+		return fs.globStatus(root);
+	}
+
+	@Benchmark
+	public FileIndex scan() throws IOException {
+		return FileIndex.scan(fs, this.roots(), codecFactory, serializationExtensions, threads);
+	}
+
+	@Benchmark
+	public FileIndex cachedScan() throws IOException {
+		return FileIndex.scan(fs, this.roots(), codecFactory, serializationExtensions, threads, cache);
+	}
+}
@@ -0,0 +1,92 @@
+package com.apache.spark.external.benchmark;
+
+import com.apache.spark.external.Compaction;
+import com.apache.spark.external.CompactionPlanner;
+import com.apache.spark.external.FileIndex;
+import com.apache.spark.external.FileIndex.IndexedFile;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Microbenchmarks of the driver side planning: bin packing, balancing the groups of the raw merge and the split size
+ * calculation of the default strategy, over in-memory indexes of lognormally sized files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlannerBenchmark {
+
+	private static final long MEAN_FILE_SIZE = 4L * 1024 * 1024;
+	private static final long TARGET_SIZE = 128L * 1024 * 1024;
+	private static final double SKIP_THRESHOLD_RATIO = 0.8;
+	private static final double SIZE_FACTOR = 1.0 / 1.7;
+
+	@Param({"1000", "10000", "100000"})
+	public int fileCount;
+
+	private List<IndexedFile> files;
+	private Compaction compaction;
+	private String localPath;
+
+	@Setup
+	public void setUp() throws IOException {
+		SmallFileGenerator generator = new SmallFileGenerator(new Configuration());
+		generator.setFileSize(MEAN_FILE_SIZE);
+		generator.setDistribution(SmallFileGenerator.LOGNORMAL);
+
+		Random random = new Random(42);
+		files = new ArrayList<>(fileCount);
+		for (int i = 0; i < fileCount; i++) {
+			Path path = new Path(String.format("file:///landing/dir=%04d/part-%06d.snappy.parquet", i % 100, i));
+			FileStatus status = new FileStatus(generator.nextSize(random), false, 1, TARGET_SIZE, i, path);
+			files.add(new IndexedFile(status, null, SmallFileGenerator.PARQUET));
+		}
+
+		// The index is set before the input path, so setting the path only resolves the local filesystem.
+		localPath = new Path(new File(System.getProperty("java.io.tmpdir")).toURI()).toString();
+		compaction = new Compaction();
+		compaction.setFileIndex(new FileIndex(files, 0));
+		compaction.setInputPath(localPath);
+		compaction.setInputCompressionRatio(1.0);
+		compaction.setOutputCompressionRatio(1.7);
+	}
+
+	@Benchmark
+	public CompactionPlanner.Plan binPack() {
+		return CompactionPlanner.binPack(files, SIZE_FACTOR, TARGET_SIZE, (long) (TARGET_SIZE * SKIP_THRESHOLD_RATIO));
+	}
+
+	@Benchmark
+	public CompactionPlanner.Plan balance() {
+		return CompactionPlanner.balance(files, Math.max(1, fileCount / 32), SIZE_FACTOR);
+	}
+
+	@Benchmark
+	public int splitSize() throws IOException {
+		compaction.setInputPathSize(localPath);
+		compaction.setSplitSize(localPath);
+		return compaction.getSplitSize();
+	}
+}
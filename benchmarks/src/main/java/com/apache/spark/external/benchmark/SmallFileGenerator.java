@@ -0,0 +1,513 @@
+package com.apache.spark.external.benchmark;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.parquet.column.ParquetProperties;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.example.data.simple.SimpleGroupFactory;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.example.GroupWriteSupport;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.MessageTypeParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes a synthetic dataset of small files for the benchmarks.
+ *
+ * Every file holds event records with a few numeric columns, low cardinality strings and a free text payload, so the
+ * codecs compress them roughly like real landing data. The size of each file is drawn from a fixed, uniform or
+ * lognormal distribution around the mean file size, and sizes are measured before compression: the bytes of the text
+ * lines, or the bytes of the values for Parquet and Avro. Files are named the way the compaction detects their
+ * serialization and codec, e.g. part-000000.txt.gz or part-000000.snappy.parquet, and can be spread over several
+ * sub directories to exercise the recursive listing. The same seed always generates the same data.
+ */
+public class SmallFileGenerator {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(SmallFileGenerator.class);
+
+	public static final String AVRO = "avro";
+	public static final String PARQUET = "parquet";
+	public static final String TEXT = "text";
+	public static final String NONE = "none";
+	public static final String SNAPPY = "snappy";
+	public static final String GZIP = "gzip";
+	public static final String BZ2 = "bzip2";
+	public static final String FIXED = "fixed";
+	public static final String UNIFORM = "uniform";
+	public static final String LOGNORMAL = "lognormal";
+
+	private static final String OUTPUT_PATH = "output-path";
+	private static final String SERIALIZATION = "serialization";
+	private static final String COMPRESSION = "compression";
+	private static final String FILES = "files";
+	private static final String FILE_SIZE = "file-size-kb";
+	private static final String DISTRIBUTION = "distribution";
+	private static final String DIRECTORIES = "directories";
+	private static final String SEED = "seed";
+
+	// A lognormal sigma of 1 gives a long tail: the largest of 1000 files is about 20 times the median.
+	private static final double LOGNORMAL_SIGMA = 1.0;
+	private static final int PARQUET_BLOCK_SIZE = 128 * 1024 * 1024;
+	private static final int PARQUET_PAGE_SIZE = 1024 * 1024;
+
+	private static final String AVRO_SCHEMA = "{\"type\": \"record\", \"name\": \"event\", \"fields\": ["
+			+ "{\"name\": \"id\", \"type\": \"long\"}, "
+			+ "{\"name\": \"event_time\", \"type\": \"long\"}, "
+			+ "{\"name\": \"customer_id\", \"type\": \"string\"}, "
+			+ "{\"name\": \"category\", \"type\": \"string\"}, "
+			+ "{\"name\": \"amount\", \"type\": \"double\"}, "
+			+ "{\"name\": \"payload\", \"type\": \"string\"}]}";
+
+	private static final String PARQUET_SCHEMA = "message event {"
+			+ " required int64 id;"
+			+ " required int64 event_time;"
+			+ " required binary customer_id (UTF8);"
+			+ " required binary category (UTF8);"
+			+ " required double amount;"
+			+ " required binary payload (UTF8);"
+			+ " }";
+
+	private static final String[] CATEGORIES = {
+			"books", "music", "movies", "games", "garden", "toys", "tools", "sports",
+			"beauty", "health", "grocery", "office", "pets", "baby", "auto", "electronics"};
+
+	private static final String[] WORDS = {
+			"order", "placed", "shipped", "delivered", "returned", "cancelled", "payment", "received", "refund",
+			"issued", "customer", "requested", "update", "address", "changed", "warehouse", "picked", "packed",
+			"carrier", "scanned", "delayed", "weather", "priority", "standard", "express", "coupon", "applied",
+			"gift", "wrapped", "review", "submitted", "rating", "inventory", "restocked", "backorder", "session",
+			"started", "ended", "browser", "mobile", "desktop", "search", "clicked", "viewed", "cart", "added",
+			"removed", "checkout", "completed", "failed", "retry", "timeout", "success", "error", "warning"};
+
+	private final Configuration conf;
+	private final CompressionCodecFactory codecFactory;
+
+	private String serialization = TEXT;
+	private String compression = NONE;
+	private int fileCount = 1000;
+	private long fileSize = 64 * 1024;
+	private String distribution = LOGNORMAL;
+	private int directories = 1;
+	private long seed = 42;
+
+	public SmallFileGenerator(Configuration conf) {
+		this.conf = conf;
+		this.codecFactory = new CompressionCodecFactory(conf);
+	}
+
+	/**
+	 * Writes the files under the root path, replacing whatever was there.
+	 */
+	public GeneratedInput generate(Path root) throws IOException {
+		if (PARQUET.equals(serialization) && BZ2.equals(compression)) {
+			throw new IllegalArgumentException("Parquet does not support bzip2 compression");
+		}
+		if (TEXT.equals(serialization) && codecFactory.getCodecByName(compression) == null && !NONE.equals(compression)) {
+			throw new IllegalArgumentException("Unknown compression: " + compression);
+		}
+
+		FileSystem fs = root.getFileSystem(conf);
+		fs.delete(root, true);
+		fs.mkdirs(root);
+
+		long start = System.currentTimeMillis();
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		List<Future<long[]>> written = new ArrayList<>();
+		for (int i = 0; i < fileCount; i++) {
+			final int fileId = i;
+			written.add(pool.submit(() -> this.writeFile(fs, root, fileId)));
+		}
+
+		long rawBytes = 0;
+		long records = 0;
+		try {
+			for (Future<long[]> file : written) {
+				rawBytes += file.get()[0];
+				records += file.get()[1];
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while generating " + root, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Failed to generate " + root, e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+
+		GeneratedInput input = new GeneratedInput(root, fileCount, records, rawBytes, fs.getContentSummary(root).getLength());
+		LOGGER.info("Generated " + fileCount + " " + serialization + "/" + compression + " files (" + records + " records, " + rawBytes
+				+ " raw bytes, " + input.getStoredBytes() + " stored bytes) in " + root + " in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		return input;
+	}
+
+	/**
+	 * Draws the raw size of a file. Every distribution has the configured file size as its mean.
+	 */
+	public long nextSize(Random random) {
+		switch (distribution) {
+			case FIXED:
+				return fileSize;
+			case UNIFORM:
+				return (long) (fileSize * (0.5 + random.nextDouble()));
+			case LOGNORMAL:
+				// The median is scaled down by exp(sigma^2 / 2) so that the mean stays at the file size.
+				return Math.max(1, (long) (fileSize * Math.exp(LOGNORMAL_SIGMA * random.nextGaussian()
+						- LOGNORMAL_SIGMA * LOGNORMAL_SIGMA / 2)));
+			default:
+				throw new IllegalArgumentException("Did not match any distribution: fixed, uniform, or lognormal.  Recieved: " +
+						distribution);
+		}
+	}
+
+	// Each file has its own random generator, so the data does not depend on the order the threads write the files in.
+	// Every writer returns the raw bytes and the records it wrote.
+	private long[] writeFile(FileSystem fs, Path root, int fileId) throws IOException {
+		Random random = new Random(seed * 31 + fileId);
+		long size = this.nextSize(random);
+		Path directory = directories > 1 ? new Path(root, String.format("dir=%04d", fileId % directories)) : root;
+		String name = String.format("part-%06d", fileId);
+
+		switch (serialization) {
+			case TEXT:
+				return this.writeText(fs, new Path(directory, name + ".txt" + this.textExtension()), random, fileId, size);
+			case PARQUET:
+				return this.writeParquet(new Path(directory, name + this.parquetExtension()), random, fileId, size);
+			case AVRO:
+				return this.writeAvro(fs, new Path(directory, name + ".avro"), random, fileId, size);
+			default:
+				throw new IllegalArgumentException("Did not match any serialization type: text, parquet, or avro.  Recieved: " +
+						serialization);
+		}
+	}
+
+	private long[] writeText(FileSystem fs, Path path, Random random, int fileId, long size) throws IOException {
+		CompressionCodec codec = NONE.equals(compression) ? null : codecFactory.getCodecByName(compression);
+		OutputStream out = codec == null ? fs.create(path, true) : codec.createOutputStream(fs.create(path, true));
+
+		long written = 0;
+		long row = 0;
+		try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+			for (; written < size; row++) {
+				String line = recordId(fileId, row) + "," + eventTime(fileId, row) + "," + customerId(random) + ","
+						+ category(random) + "," + amount(random) + "," + payload(random) + "\n";
+				writer.write(line);
+				written += line.length();
+			}
+		}
+		return new long[]{written, row};
+	}
+
+	private long[] writeParquet(Path path, Random random, int fileId, long size) throws IOException {
+		MessageType schema = MessageTypeParser.parseMessageType(PARQUET_SCHEMA);
+		Configuration writerConf = new Configuration(conf);
+		GroupWriteSupport.setSchema(schema, writerConf);
+		SimpleGroupFactory groups = new SimpleGroupFactory(schema);
+		CompressionCodecName codec = NONE.equals(compression) ? CompressionCodecName.UNCOMPRESSED : CompressionCodecName.fromConf(compression);
+
+		long written = 0;
+		long row = 0;
+		try (ParquetWriter<Group> writer = new ParquetWriter<>(path, new GroupWriteSupport(), codec, PARQUET_BLOCK_SIZE,
+				PARQUET_PAGE_SIZE, PARQUET_PAGE_SIZE, true, false, ParquetProperties.WriterVersion.PARQUET_1_0, writerConf)) {
+			for (; written < size; row++) {
+				String customerId = customerId(random);
+				String category = category(random);
+				String payload = payload(random);
+				writer.write(groups.newGroup()
+						.append("id", recordId(fileId, row))
+						.append("event_time", eventTime(fileId, row))
+						.append("customer_id", customerId)
+						.append("category", category)
+						.append("amount", amount(random))
+						.append("payload", payload));
+				written += 24 + customerId.length() + category.length() + payload.length();
+			}
+		}
+		return new long[]{written, row};
+	}
+
+	private long[] writeAvro(FileSystem fs, Path path, Random random, int fileId, long size) throws IOException {
+		Schema schema = new Schema.Parser().parse(AVRO_SCHEMA);
+
+		long written = 0;
+		long row = 0;
+		try (DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(schema))) {
+			writer.setCodec(CodecFactory.fromString(this.avroCodec()));
+			writer.create(schema, fs.create(path, true));
+			for (; written < size; row++) {
+				GenericRecord record = new GenericData.Record(schema);
+				record.put("id", recordId(fileId, row));
+				record.put("event_time", eventTime(fileId, row));
+				record.put("customer_id", customerId(random));
+				record.put("category", category(random));
+				record.put("amount", amount(random));
+				record.put("payload", payload(random));
+				writer.append(record);
+				written += 24 + record.get("customer_id").toString().length() + record.get("category").toString().length()
+						+ record.get("payload").toString().length();
+			}
+		}
+		return new long[]{written, row};
+	}
+
+	private String textExtension() {
+		return NONE.equals(compression) ? "" : codecFactory.getCodecByName(compression).getDefaultExtension();
+	}
+
+	// Follows the names Spark gives to Parquet files, e.g. part-00000.snappy.parquet or part-00000.gz.parquet.
+	private String parquetExtension() {
+		return (NONE.equals(compression) ? "" : GZIP.equals(compression) ? ".gz" : "." + compression) + ".parquet";
+	}
+
+	private String avroCodec() {
+		switch (compression) {
+			case NONE:
+				return "null";
+			case GZIP:
+				return "deflate";
+			default:
+				return compression;
+		}
+	}
+
+	private static long recordId(int fileId, long row) {
+		return ((long) fileId << 32) + row;
+	}
+
+	private static long eventTime(int fileId, long row) {
+		return 1500000000000L + fileId * 60000L + row;
+	}
+
+	private static String customerId(Random random) {
+		return "customer-" + random.nextInt(10000);
+	}
+
+	private static String category(Random random) {
+		return CATEGORIES[random.nextInt(CATEGORIES.length)];
+	}
+
+	private static double amount(Random random) {
+		return Math.round(random.nextDouble() * 100000) / 100.0;
+	}
+
+	private static String payload(Random random) {
+		StringBuilder payload = new StringBuilder();
+		int words = 8 + random.nextInt(16);
+		for (int i = 0; i < words; i++) {
+			if (i > 0) {
+				payload.append(' ');
+			}
+			payload.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return payload.toString();
+	}
+
+	/**
+	 * Adds the options that shape the generated files, shared by every command line that generates input.
+	 */
+	public static void addOptions(Options options) {
+		Option option = new Option("n", FILES, true, "The number of files to generate\n(required : false, default : 1000)");
+		option.setRequired(false);
+		options.addOption(option);
+
+		option = new Option("fs", FILE_SIZE, true, "The mean size of a file before compression in KB\n(required : false, default : 64)");
+		option.setRequired(false);
+		options.addOption(option);
+
+		option = new Option("d", DISTRIBUTION, true,
+				"The distribution of the file sizes\n(fixed, uniform, lognormal)\n(required : false, default : lognormal)");
+		option.setRequired(false);
+		options.addOption(option);
+
+		option = new Option("dirs", DIRECTORIES, true,
+				"The number of sub directories to spread the files over\n(required : false, default : 1)");
+		option.setRequired(false);
+		options.addOption(option);
+
+		option = new Option("seed", SEED, true, "The seed of the generated data\n(required : false, default : 42)");
+		option.setRequired(false);
+		options.addOption(option);
+	}
+
+	public void setOptions(CommandLine line) {
+		if (line.hasOption(FILES)) {
+			this.setFileCount(Integer.parseInt(line.getOptionValue(FILES)));
+		}
+		if (line.hasOption(FILE_SIZE)) {
+			this.setFileSizeInKB(Long.parseLong(line.getOptionValue(FILE_SIZE)));
+		}
+		if (line.hasOption(DISTRIBUTION)) {
+			this.setDistribution(line.getOptionValue(DISTRIBUTION));
+		}
+		if (line.hasOption(DIRECTORIES)) {
+			this.setDirectories(Integer.parseInt(line.getOptionValue(DIRECTORIES)));
+		}
+		if (line.hasOption(SEED)) {
+			this.setSeed(Long.parseLong(line.getOptionValue(SEED)));
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		Options options = new Options();
+		Option option = new Option("o", OUTPUT_PATH, true, "The directory to write the files to\n(required : true)");
+		option.setRequired(true);
+		options.addOption(option);
+
+		option = new Option("s", SERIALIZATION, true,
+				"The serialization of the files\n(avro, parquet, text)\n(required : false, default : text)");
+		option.setRequired(false);
+		options.addOption(option);
+
+		option = new Option("c", COMPRESSION, true,
+				"The compression of the files\n(none, snappy, gzip, bzip2)\n(required : false, default : none)");
+		option.setRequired(false);
+		options.addOption(option);
+
+		addOptions(options);
+
+		CommandLine line;
+		try {
+			line = new GnuParser().parse(options, args);
+		} catch (ParseException e) {
+			new HelpFormatter().printHelp(SmallFileGenerator.class.getSimpleName(), e.getMessage(), options, "");
+			System.exit(1);
+			return;
+		}
+
+		SmallFileGenerator generator = new SmallFileGenerator(new Configuration());
+		generator.setSerialization(line.getOptionValue(SERIALIZATION, TEXT));
+		generator.setCompression(line.getOptionValue(COMPRESSION, NONE));
+		generator.setOptions(line);
+		generator.generate(new Path(line.getOptionValue(OUTPUT_PATH)));
+	}
+
+	public String getSerialization() {
+		return serialization;
+	}
+
+	public void setSerialization(String serialization) {
+		this.serialization = serialization.toLowerCase();
+	}
+
+	public String getCompression() {
+		return compression;
+	}
+
+	public void setCompression(String compression) {
+		this.compression = compression.toLowerCase();
+	}
+
+	public int getFileCount() {
+		return fileCount;
+	}
+
+	public void setFileCount(int fileCount) {
+		this.fileCount = fileCount;
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	public void setFileSize(long fileSize) {
+		this.fileSize = fileSize;
+	}
+
+	public void setFileSizeInKB(long fileSizeInKB) {
+		this.fileSize = fileSizeInKB * 1024;
+	}
+
+	public String getDistribution() {
+		return distribution;
+	}
+
+	public void setDistribution(String distribution) {
+		this.distribution = distribution.toLowerCase();
+	}
+
+	public int getDirectories() {
+		return directories;
+	}
+
+	public void setDirectories(int directories) {
+		this.directories = directories;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public static class GeneratedInput {
+
+		private final Path root;
+		private final int files;
+		private final long records;
+		private final long rawBytes;
+		private final long storedBytes;
+
+		public GeneratedInput(Path root, int files, long records, long rawBytes, long storedBytes) {
+			this.root = root;
+			this.files = files;
+			this.records = records;
+			this.rawBytes = rawBytes;
+			this.storedBytes = storedBytes;
+		}
+
+		public Path getRoot() {
+			return root;
+		}
+
+		public int getFiles() {
+			return files;
+		}
+
+		public long getRecords() {
+			return records;
+		}
+
+		public long getRawBytes() {
+			return rawBytes;
+		}
+
+		public long getStoredBytes() {
+			return storedBytes;
+		}
+	}
+}
@@ -13,7 +13,16 @@ Required Arguments:
 Optional Arguments:
     --output-compression(Taken as input compression if not provided)
     --output-serialization(Taken as input serialization if not provided)
-    --compaction-strategy(Taken as default if not provided)
+    --compaction-strategy [default size_range bin_packing](Taken as default if not provided)
+    --watch-interval {seconds}(Keeps running and compacts new input every given number of seconds)
+    --sort-columns {column1,column2}(Sorts the rows of every output file by these columns)
+    --parquet-row-group-size {size_in_mb}
+    --parquet-page-size {size_in_kb}
+    --parquet-dictionary [true false]
+
+Batch Arguments (replace all of the above):
+    --batch(Compacts the jobs listed under batch in application_configs.json)
+    --batch-manifest {manifest_file}(Compacts the jobs listed under batch in the given JSON file)
 
 Please provide the arguments as follows
 Example 1: Strategy: size_range
@@ -22,6 +31,8 @@ Example 2: Strategy: Default
     sh spark-compaction.sh --input-path {input_path} --output-path {output_path} --input-compression [none snappy gzip bz2 lzo] --input-serialization [text parquet avro] --output-compression [none snappy gzip bz2 lzo] --output-serialization [text parquet avro] --compaction-strategy default
         (or)
     sh spark-compaction.sh --input-path {input_path} --output-path {output_path} --input-compression [none snappy gzip bz2 lzo] --input-serialization [text parquet avro] --output-compression [none snappy gzip bz2 lzo] --output-serialization [text parquet avro]
+Example 3: Batch
+    sh spark-compaction.sh --batch-manifest {manifest_file}
 """
 
 POSITIONAL=()
@@ -65,11 +76,45 @@ case $key in
     shift # past argument
     shift # past value
     ;;
+    -sc|--sort-columns)
+    SORT_COLUMNS="$2"
+    shift # past argument
+    shift # past value
+    ;;
+    -prg|--parquet-row-group-size)
+    PARQUET_ROW_GROUP_SIZE="$2"
+    shift # past argument
+    shift # past value
+    ;;
+    -pps|--parquet-page-size)
+    PARQUET_PAGE_SIZE="$2"
+    shift # past argument
+    shift # past value
+    ;;
+    -pd|--parquet-dictionary)
+    PARQUET_DICTIONARY="$2"
+    shift # past argument
+    shift # past value
+    ;;
+    -wi|--watch-interval)
+    WATCH_INTERVAL="$2"
+    shift # past argument
+    shift # past value
+    ;;
+    -b|--batch)
+    BATCH="true"
+    shift # past argument
+    ;;
+    -bm|--batch-manifest)
+    BATCH_MANIFEST="$2"
+    shift # past argument
+    shift # past value
+    ;;
 esac
 done
 set -- "${POSITIONAL[@]}" # restore positional parameters
 
-if [[ -z "${INPUT_PATH}" || -z "${OUTPUT_PATH}" || -z "${INPUT_COMPRESSION}" || -z ${INPUT_SERIALIZATION} ]]; then
+if [[ -z "${BATCH}" && -z "${BATCH_MANIFEST}" ]] && [[ -z "${INPUT_PATH}" || -z "${OUTPUT_PATH}" || -z "${INPUT_COMPRESSION}" || -z ${INPUT_SERIALIZATION} ]]; then
     echo "Please provide all the required arguments to proceed with the compaction Job. Please provide the arguments as follows"
     echo "${HELP_STR}"
     exit 0
@@ -101,16 +146,44 @@ SPARK_EXECUTOR_CORES=`cat "$APPLICATION_CONF_FILE" | python -c "import json,sys;
 KEYTAB_LOCATION=`cat "$APPLICATION_CONF_FILE" | python -c "import json,sys;obj=json.load(sys.stdin);print obj['kerberos']['keytab'];"`
 KERBEROS_PRINCIPAL=`cat "$APPLICATION_CONF_FILE" | python -c "import json,sys;obj=json.load(sys.stdin);print obj['kerberos']['principal'];"`
 
+APP_ARGS="--input-path ${INPUT_PATH} --output-path ${OUTPUT_PATH} --input-compression ${INPUT_COMPRESSION} --input-serialization ${INPUT_SERIALIZATION} --output-compression ${OUTPUT_COMPRESSION} --output-serialization ${OUTPUT_SERIALIZATION} --compaction-strategy ${COMPACTION_STRATEGY}"
+if [[ -n "${SORT_COLUMNS}" ]]; then
+    APP_ARGS="${APP_ARGS} --sort-columns ${SORT_COLUMNS}"
+fi
+if [[ -n "${PARQUET_ROW_GROUP_SIZE}" ]]; then
+    APP_ARGS="${APP_ARGS} --parquet-row-group-size ${PARQUET_ROW_GROUP_SIZE}"
+fi
+if [[ -n "${PARQUET_PAGE_SIZE}" ]]; then
+    APP_ARGS="${APP_ARGS} --parquet-page-size ${PARQUET_PAGE_SIZE}"
+fi
+if [[ -n "${PARQUET_DICTIONARY}" ]]; then
+    APP_ARGS="${APP_ARGS} --parquet-dictionary ${PARQUET_DICTIONARY}"
+fi
+if [[ -n "${WATCH_INTERVAL}" ]]; then
+    APP_ARGS="${APP_ARGS} --watch-interval ${WATCH_INTERVAL}"
+fi
+DRIVER_FILES="${CONF_DIR}/application.json"
+if [[ -n "${BATCH_MANIFEST}" ]]; then
+    APP_ARGS="--batch-manifest ${BATCH_MANIFEST}"
+    DRIVER_FILES="${DRIVER_FILES},${BATCH_MANIFEST}"
+elif [[ -n "${BATCH}" ]]; then
+    APP_ARGS="--batch"
+fi
+
 LOG_FILE="${BIN_DIR}/../logs/${SPARK_APP_NAME}__started_at_`date '+%Y%m%d%H%M%S'`"
 
 echo ${SPARK_MASTER}
 
 if [[ "${SPARK_MASTER}" = "yarn-client" ]]; then
     echo "Launching Spark Streaming Application in Yarn Client Mode"
-    SPARK_SUBMIT_STARTUP_CMD="nohup ${SPARK_SUBMIT_CMD} --master yarn --deploy-mode client --class com.apache.bigdata.spark_compaction.Compact --num-executors ${SPARK_EXECUTOR_INSTANCES} --executor-memory ${SPARK_EXECUTOR_MEMORY} --executor-cores ${SPARK_EXECUTOR_CORES} --driver-class-path ${CONF_DIR}:${JAR_FILE_LOCATION} ${JAR_FILE_LOCATION} --input-path ${INPUT_PATH} --output-path ${OUTPUT_PATH} --input-compression ${INPUT_COMPRESSION} --input-serialization ${INPUT_SERIALIZATION} --output-compression ${OUTPUT_COMPRESSION} --output-serialization ${OUTPUT_SERIALIZATION} --compaction-strategy ${COMPACTION_STRATEGY} &> ${LOG_FILE} &"
+    SPARK_SUBMIT_STARTUP_CMD="nohup ${SPARK_SUBMIT_CMD} --master yarn --deploy-mode client --class com.apache.bigdata.spark_compaction.Compact --num-executors ${SPARK_EXECUTOR_INSTANCES} --executor-memory ${SPARK_EXECUTOR_MEMORY} --executor-cores ${SPARK_EXECUTOR_CORES} --driver-class-path ${CONF_DIR}:${JAR_FILE_LOCATION} ${JAR_FILE_LOCATION} ${APP_ARGS} &> ${LOG_FILE} &"
 elif [[ "${SPARK_MASTER}" = "yarn-cluster" ]]; then
     echo "Launching Spark Streaming Application in Yarn Cluster Mode"
-    SPARK_SUBMIT_STARTUP_CMD="nohup ${SPARK_SUBMIT_CMD} --keytab ${KEYTAB_LOCATION} --principal ${KERBEROS_PRINCIPAL} --master yarn --deploy-mode cluster --class com.apache.bigdata.spark_compaction.Compact --num-executors ${SPARK_EXECUTOR_INSTANCES} --executor-memory ${SPARK_EXECUTOR_MEMORY} --executor-cores ${SPARK_EXECUTOR_CORES} --name ${SPARK_APP_NAME} --files ${CONF_DIR}/application.json ${JAR_FILE_LOCATION} --input-path ${INPUT_PATH} --output-path ${OUTPUT_PATH} --input-compression ${INPUT_COMPRESSION} --input-serialization ${INPUT_SERIALIZATION} --output-compression ${OUTPUT_COMPRESSION} --output-serialization ${OUTPUT_SERIALIZATION} --compaction-strategy ${COMPACTION_STRATEGY} &> ${LOG_FILE} &"
+    if [[ -n "${BATCH_MANIFEST}" ]]; then
+        # The manifest is shipped with --files and read from the working directory of the driver.
+        APP_ARGS="--batch-manifest $(basename ${BATCH_MANIFEST})"
+    fi
+    SPARK_SUBMIT_STARTUP_CMD="nohup ${SPARK_SUBMIT_CMD} --keytab ${KEYTAB_LOCATION} --principal ${KERBEROS_PRINCIPAL} --master yarn --deploy-mode cluster --class com.apache.bigdata.spark_compaction.Compact --num-executors ${SPARK_EXECUTOR_INSTANCES} --executor-memory ${SPARK_EXECUTOR_MEMORY} --executor-cores ${SPARK_EXECUTOR_CORES} --name ${SPARK_APP_NAME} --files ${DRIVER_FILES} ${JAR_FILE_LOCATION} ${APP_ARGS} &> ${LOG_FILE} &"
 fi
 
 echo "executing: ${SPARK_SUBMIT_STARTUP_CMD}"
@@ -0,0 +1,143 @@
+package com.apache.spark.external;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigValue;
+import org.apache.commons.lang.StringUtils;
+import org.apache.spark.sql.SparkSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compacts every input/output pair of a batch manifest as concurrent Spark jobs in one SparkSession.
+ *
+ * Each job of the manifest takes the same settings as the command line, with underscores in place of dashes:
+ * input_path, output_path, input_compression, input_serialization, output_compression, output_serialization,
+ * compaction_strategy and the layout options such as sort_columns. At most "parallelism" jobs run at a time and
+ * each running job submits its Spark jobs to its own FAIR scheduler pool, so a large directory cannot starve the others.
+ */
+public class BatchCompaction {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(BatchCompaction.class);
+
+	public static final String SCHEDULER_MODE = "spark.scheduler.mode";
+	public static final String FAIR = "FAIR";
+	private static final String SCHEDULER_POOL = "spark.scheduler.pool";
+	private static final String POOL_PREFIX = "compaction-";
+	private static final String JOBS = "batch.jobs";
+	private static final String PARALLELISM = "batch.parallelism";
+	private static final int DEFAULT_PARALLELISM = 4;
+
+	private final List<String[]> jobs;
+	private final int parallelism;
+
+	public BatchCompaction(Config manifest) {
+		this.jobs = new ArrayList<>();
+		for (Config job : manifest.getConfigList(JOBS)) {
+			List<String> args = new ArrayList<>();
+			for (Entry<String, ConfigValue> setting : job.entrySet()) {
+				args.add("--" + setting.getKey().replace('_', '-'));
+				Object value = setting.getValue().unwrapped();
+				// Lists such as sort_columns are passed the way the command line takes them, comma separated.
+				args.add(value instanceof List ? StringUtils.join((List<?>) value, ",") : String.valueOf(value));
+			}
+			this.jobs.add(args.toArray(new String[0]));
+		}
+		this.parallelism = manifest.hasPath(PARALLELISM) ? manifest.getInt(PARALLELISM) : DEFAULT_PARALLELISM;
+	}
+
+	/**
+	 * Runs every job of the manifest and logs one summary line per job.
+	 *
+	 * @return the results in the order of the manifest
+	 */
+	public List<Result> run(SparkSession spark) {
+		LOGGER.info("Compacting " + jobs.size() + " directories with a parallelism of " + parallelism);
+
+		// Every worker thread submits to the FAIR pool it is named after, so two running jobs never share a pool.
+		AtomicInteger workers = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, parallelism),
+				runnable -> new Thread(runnable, POOL_PREFIX + workers.getAndIncrement()));
+		List<Future<Result>> futures = new ArrayList<>();
+		for (final String[] args : jobs) {
+			futures.add(pool.submit(() -> {
+				spark.sparkContext().setLocalProperty(SCHEDULER_POOL, Thread.currentThread().getName());
+				long start = System.currentTimeMillis();
+				try {
+					new Compaction().compact(spark, args);
+					return new Result(args, null, System.currentTimeMillis() - start);
+				} catch (Exception e) {
+					LOGGER.error("Compaction failed for " + describe(args), e);
+					return new Result(args, e.toString(), System.currentTimeMillis() - start);
+				}
+			}));
+		}
+
+		List<Result> results = new ArrayList<>();
+		try {
+			for (Future<Result> future : futures) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the batch to finish", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Batch job failed unexpectedly", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+
+		int failures = 0;
+		LOGGER.info("Batch Summary:");
+		for (Result result : results) {
+			if (!result.isSucceeded()) {
+				failures++;
+			}
+			LOGGER.info((result.isSucceeded() ? "SUCCEEDED " : "FAILED    ") + describe(result.getArgs())
+					+ " (" + result.getDurationMillis() + " ms)" + (result.isSucceeded() ? "" : ": " + result.getError()));
+		}
+		LOGGER.info("Batch Succeeded: " + (results.size() - failures) + ", Failed: " + failures);
+		return results;
+	}
+
+	private static String describe(String[] args) {
+		return String.join(" ", args);
+	}
+
+	public static class Result {
+
+		private final String[] args;
+		private final String error;
+		private final long durationMillis;
+
+		public Result(String[] args, String error, long durationMillis) {
+			this.args = args;
+			this.error = error;
+			this.durationMillis = durationMillis;
+		}
+
+		public String[] getArgs() {
+			return args;
+		}
+
+		public boolean isSucceeded() {
+			return error == null;
+		}
+
+		public String getError() {
+			return error;
+		}
+
+		public long getDurationMillis() {
+			return durationMillis;
+		}
+	}
+}
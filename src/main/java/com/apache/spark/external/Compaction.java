@@ -1,7 +1,12 @@
 package com.apache.spark.external;
 
+import com.apache.spark.external.FileIndex.IndexedFile;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
 import org.apache.commons.cli.*;
 import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.conf.Configuration;
@@ -10,27 +15,45 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.spark.SparkContext;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.DataFrameReader;
+import org.apache.spark.sql.DataFrameWriter;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.types.StructType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class Compaction {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(Compaction.class);
 
 	private static Configuration conf = new Configuration();
-	private static CompressionCodecFactory codecFactory;
+	private static CompressionCodecFactory codecFactory = new CompressionCodecFactory(conf);
 	private FileSystem fs;
-	private FileStatus[] fsArray;
+	private FileIndex fileIndex;
 
 	private static final String AVRO = "avro";
 	private static final String BLOCK = "BLOCK";
@@ -55,6 +78,44 @@ public class Compaction {
 	private static final String OUTPUT_COMPRESSION = "output-compression";
 	private static final String OUTPUT_SERIALIZATION = "output-serialization";
 	private static final String COMPACTION_STRATEGY = "compaction-strategy";
+	private static final String BATCH = "batch";
+	private static final String BATCH_MANIFEST = "batch-manifest";
+	private static final String WATCH_INTERVAL = "watch-interval";
+	private static final String SORT_COLUMNS = "sort-columns";
+	private static final String PARQUET_ROW_GROUP_SIZE = "parquet-row-group-size";
+	private static final String PARQUET_PAGE_SIZE = "parquet-page-size";
+	private static final String PARQUET_DICTIONARY = "parquet-dictionary";
+	private static final String PARQUET_BLOCK_SIZE_PROPERTY = "parquet.block.size";
+	private static final String PARQUET_PAGE_SIZE_PROPERTY = "parquet.page.size";
+	private static final String PARQUET_DICTIONARY_PROPERTY = "parquet.enable.dictionary";
+	private static final String CONFIG_SORT_COLUMNS = "compaction.parquet.sort_columns";
+	private static final String CONFIG_ROW_GROUP_SIZE = "compaction.parquet.row_group_size_in_mb";
+	private static final String CONFIG_PAGE_SIZE = "compaction.parquet.page_size_in_kb";
+	private static final String CONFIG_DICTIONARY = "compaction.parquet.enable_dictionary";
+	private static final String DEFAULT_STRATEGY = "default";
+	private static final String SIZE_RANGE_STRATEGY = "size_range";
+	private static final String BIN_PACKING_STRATEGY = "bin_packing";
+	private static final String LISTING_THREADS = "compaction.listing_threads";
+	private static final int DEFAULT_LISTING_THREADS = 16;
+	private static final String BIN_PACKING_TARGET_SIZE = "compaction.bin_packing.target_size_in_mb";
+	private static final String BIN_PACKING_SKIP_THRESHOLD = "compaction.bin_packing.skip_threshold_ratio";
+	private static final String BIN_PACKING_PARALLELISM = "compaction.bin_packing.parallelism";
+	private static final String RAW_MERGE_ENABLED = "compaction.raw_merge.enabled";
+	private static final String RATIO_ESTIMATION_ENABLED = "compaction.ratio_estimation.enabled";
+	private static final String RATIO_SAMPLE_SIZE = "compaction.ratio_estimation.sample_size_in_mb";
+	private static final String RATIO_CACHE_PATH = "compaction.ratio_estimation.cache_path";
+	private static final int DEFAULT_RATIO_SAMPLE_SIZE_IN_MB = 64;
+	private static final String DEFAULT_RATIO_CACHE_PATH = "/tmp/spark-compaction/compression_ratios";
+	private static final double DEFAULT_SKIP_THRESHOLD_RATIO = 0.8;
+	private static final int DEFAULT_BIN_PACKING_PARALLELISM = 8;
+	private static final String STAGING_DIR = "_staging";
+	private static final String REWRITE_DIR = "rewrites";
+	private static final String COPY_DIR = "copies";
+	private static final Pattern PART_FILE = Pattern.compile("part-(\\d+)-.*");
+	private static final String SUCCESS_FILE = "_SUCCESS";
+	private static final String METRICS_FILE = "_compaction_metrics.json";
+	private static final String METRICS_OUTPUT_PATH = "metrics.output_path";
+	private static final String METRICS_PUSHGATEWAY_URL = "metrics.pushgateway_url";
 
 	private static final double SNAPPY_RATIO = 1.7;     // (100 / 1.7) = 58.8 ~ 40% compression rate on text
 	private static final double LZO_RATIO = 2.0;        // (100 / 2.0) = 50.0 ~ 50% compression rate on text
@@ -65,7 +126,8 @@ public class Compaction {
 	private static final double PARQUET_RATIO = 2.0;    // (100 / 2.0) = 50.0 ~ 50% compression rate on text
 	private static final double TEXT_RATIO = 1.0;
 
-	private static Options options;
+	private Options options;
+	private boolean exitOnInvalidOptions = true;
 
 	private HashMap<String, Double> compressionRatios;
 	private HashMap<CompressionCodec, String> compressionTypes;
@@ -84,16 +146,34 @@ public class Compaction {
 	private double inputCompressionRatio;
 	private double outputCompressionRatio;
 	private Path inputCompressionPath;
+	private CompactionPlanner.Plan compactionPlan;
+	private CompactionMetrics metrics;
+	private String batchOutputPath;
+	private String batchPath;
+	private long batchTime;
+	private long targetFileSize;
+	private List<String> sortColumns;
+	private int parquetRowGroupSizeInMB;
+	private int parquetPageSizeInKB;
+	private String parquetDictionary;
 
 	private Config config = ConfigFactory.load("application_configs.json");
 	private List<Map<String, Integer>> SIZE_RANGES_FOR_COMPACTION = (List<Map<String, Integer>>) config.getAnyRefList("compaction.size_ranges_for_compaction");
 	private String SPARK_APP_NAME = config.getString("spark.app_name");
+	private int listingThreads = config.hasPath(LISTING_THREADS) ? config.getInt(LISTING_THREADS) : DEFAULT_LISTING_THREADS;
+	private int binPackingTargetSizeInMB = config.hasPath(BIN_PACKING_TARGET_SIZE) ? config.getInt(BIN_PACKING_TARGET_SIZE) : 0;
+	private double binPackingSkipThresholdRatio = config.hasPath(BIN_PACKING_SKIP_THRESHOLD) ? config.getDouble(BIN_PACKING_SKIP_THRESHOLD) : DEFAULT_SKIP_THRESHOLD_RATIO;
+	private int binPackingParallelism = config.hasPath(BIN_PACKING_PARALLELISM) ? config.getInt(BIN_PACKING_PARALLELISM) : DEFAULT_BIN_PACKING_PARALLELISM;
+	private boolean rawMergeEnabled = !config.hasPath(RAW_MERGE_ENABLED) || config.getBoolean(RAW_MERGE_ENABLED);
+	private boolean ratioEstimationEnabled = !config.hasPath(RATIO_ESTIMATION_ENABLED) || config.getBoolean(RATIO_ESTIMATION_ENABLED);
+	private int ratioSampleSizeInMB = config.hasPath(RATIO_SAMPLE_SIZE) ? config.getInt(RATIO_SAMPLE_SIZE) : DEFAULT_RATIO_SAMPLE_SIZE_IN_MB;
+	private String ratioCachePath = config.hasPath(RATIO_CACHE_PATH) ? config.getString(RATIO_CACHE_PATH) : DEFAULT_RATIO_CACHE_PATH;
+	private String metricsOutputPath = config.hasPath(METRICS_OUTPUT_PATH) ? config.getString(METRICS_OUTPUT_PATH) : null;
+	private String pushgatewayUrl = config.hasPath(METRICS_PUSHGATEWAY_URL) ? config.getString(METRICS_PUSHGATEWAY_URL) : null;
 
 
 	public Compaction() {
 
-		codecFactory = new CompressionCodecFactory(conf);
-
 		this.setInputPathSize(0);
 		this.setInputCompression(NONE);
 		this.setInputSerialization(TEXT);
@@ -174,7 +254,17 @@ public class Compaction {
 	}
 
 	private void compact(String[] args) throws IOException {
-		this.setCompressionAndSerializationOptions(this.parseCli(args));
+		CommandLine line = this.parseOptions(args);
+		if (line.hasOption(BATCH) || line.hasOption(BATCH_MANIFEST)) {
+			this.compactBatch(line);
+			return;
+		}
+		if (line.hasOption(WATCH_INTERVAL)) {
+			this.compactIncrementally(line, args);
+			return;
+		}
+
+		this.setCompressionAndSerializationOptions(this.parseCli(line));
 		this.outputCompressionProperties(this.outputCompression);
 
 		// Defining Spark Session.
@@ -183,6 +273,75 @@ public class Compaction {
 				.appName(SPARK_APP_NAME)
 				.getOrCreate();
 
+		this.compact(spark);
+	}
+
+	/**
+	 * Compacts a single input/output pair of a batch inside an existing SparkSession. Invalid options fail this pair
+	 * with an IllegalArgumentException instead of exiting the application. Also the entry point for running a
+	 * compaction from other code, such as the benchmarks.
+	 */
+	public void compact(SparkSession spark, String[] args) throws IOException {
+		this.compact(spark, args, null);
+	}
+
+	/**
+	 * Same as {@link #compact(SparkSession, String[])}, writing to the given output path instead of the one in the
+	 * arguments when it is not null.
+	 */
+	void compact(SparkSession spark, String[] args, String outputPath) throws IOException {
+		this.exitOnInvalidOptions = false;
+		CommandLine line = this.parseCli(args);
+		if (outputPath != null) {
+			this.setOutputPath(outputPath);
+		}
+		this.setCompressionAndSerializationOptions(line);
+		this.compact(spark);
+	}
+
+	private void compactIncrementally(CommandLine line, String[] args) throws IOException {
+		if (!line.hasOption(INPUT_PATH) || !line.hasOption(OUTPUT_PATH)) {
+			printHelp("Missing required options: " + INPUT_PATH + ", " + OUTPUT_PATH);
+		}
+
+		String outputCompression = line.getOptionValue(OUTPUT_COMPRESSION, line.getOptionValue(INPUT_COMPRESSION));
+		if (outputCompression != null) {
+			this.outputCompressionProperties(outputCompression);
+		}
+
+		SparkSession spark = SparkSession
+				.builder()
+				.appName(SPARK_APP_NAME)
+				.getOrCreate();
+
+		new IncrementalCompaction(line.getOptionValue(INPUT_PATH), line.getOptionValue(OUTPUT_PATH),
+				Long.parseLong(line.getOptionValue(WATCH_INTERVAL)) * 1000L, config, args).run(spark);
+	}
+
+	private void compactBatch(CommandLine line) {
+		Config manifest = line.hasOption(BATCH_MANIFEST)
+				? ConfigFactory.parseFile(new File(line.getOptionValue(BATCH_MANIFEST)))
+				: config;
+
+		System.setProperty(BatchCompaction.SCHEDULER_MODE, BatchCompaction.FAIR);
+		SparkSession spark = SparkSession
+				.builder()
+				.appName(SPARK_APP_NAME)
+				.getOrCreate();
+
+		int failures = 0;
+		for (BatchCompaction.Result result : new BatchCompaction(manifest).run(spark)) {
+			if (!result.isSucceeded()) {
+				failures++;
+			}
+		}
+
+		if (failures > 0) {
+			throw new IllegalStateException(failures + " directories of the batch failed to compact");
+		}
+	}
+
+	private void compact(SparkSession spark) throws IOException {
 		LOGGER.info("Input Path: " + inputPath);
 		LOGGER.info("Output Path: " + outputPath);
 
@@ -193,30 +352,437 @@ public class Compaction {
 		LOGGER.info("Output serialization: " + outputSerialization);
 
 		LOGGER.info("Compaction Strategy: " + compactionStrategy);
+		LOGGER.info("Sort Columns: " + sortColumns);
+		LOGGER.info("Input Files: " + fileIndex.getFiles().size());
+		LOGGER.info("Input Listing Time (ms): " + fileIndex.getScanTimeMillis());
+
+		// spark-avro only reads its codec from the session configuration. Avro output therefore gets a session of its
+		// own, sharing the SparkContext, so that its codec does not leak into the other jobs of a batch.
+		SparkSession session = spark;
+		if (AVRO.equals(this.outputSerialization)) {
+			session = spark.newSession();
+			session.conf().set(SPARK_AVRO_COMPRESSION_CODEC,
+					NONE.equals(this.outputCompression) ? "uncompressed" : GZIP.equals(this.outputCompression) ? "deflate" : this.outputCompression);
+		}
 
+		// Every Spark job of this run is tagged with the job group of its metrics, so concurrent runs are told apart.
+		SparkContext sparkContext = spark.sparkContext();
+		this.metrics = new CompactionMetrics();
+		sparkContext.setJobGroup(metrics.getJobGroup(), "Compaction of " + inputPath, false);
+		sparkContext.addSparkListener(metrics);
+		try {
+			this.runCompaction(session);
+			metrics.awaitJobs(sparkContext);
+		} finally {
+			sparkContext.removeSparkListener(metrics);
+			sparkContext.clearJobGroup();
+		}
+
+		this.reportMetrics();
+	}
+
+	private void runCompaction(SparkSession spark) throws IOException {
+		metrics.addPhaseTime(CompactionMetrics.LISTING, fileIndex.getScanTimeMillis());
+		metrics.setInput(fileIndex);
+
+		// The sample job reads and writes outside the input and output, so its bytes are kept out of the run's metrics.
+		long start = System.currentTimeMillis();
+		SparkContext sparkContext = spark.sparkContext();
+		sparkContext.setJobGroup(metrics.getSideJobGroup(), "Compression ratio sample of " + inputPath, false);
+		try {
+			this.setCompressionRatios(spark);
+		} finally {
+			sparkContext.setJobGroup(metrics.getJobGroup(), "Compaction of " + inputPath, false);
+		}
+		metrics.addPhaseTime(CompactionMetrics.DETECTION, System.currentTimeMillis() - start);
+
+		start = System.currentTimeMillis();
+		this.planCompaction();
+
+		if (compactionPlan == null && this.isRawMergeSupported() && !fileIndex.getFiles().isEmpty()) {
+			// The raw merge writes one file per group, so the split size is turned into groups of input files.
+			this.compactionPlan = CompactionPlanner.balance(fileIndex.getFiles(), this.splitSize,
+					this.inputCompressionRatio / this.outputCompressionRatio);
+		}
+		metrics.addPhaseTime(CompactionMetrics.PLANNING, System.currentTimeMillis() - start);
+
+		if (compactionPlan != null) {
+			this.compactGroups(spark);
+		} else {
+			this.readAndWrite(spark, this.concatInputPath(inputPath), this.splitSize, outputPath);
+		}
+	}
+
+	/**
+	 * Reads the paths and writes them as the given number of files. The read time covers what Spark does on the driver
+	 * to set up the read, such as inferring the schema; the executors read while writing, so that is part of the write.
+	 */
+	private void readAndWrite(SparkSession spark, String[] paths, int files, String path) {
+		long start = System.currentTimeMillis();
+		Dataset<Row> dataset = this.readInput(spark, paths);
+		metrics.addPhaseTime(CompactionMetrics.READ, System.currentTimeMillis() - start);
+
+		start = System.currentTimeMillis();
+		this.writeOutput(dataset.coalesce(files), path);
+		metrics.addPhaseTime(CompactionMetrics.WRITE, System.currentTimeMillis() - start);
+	}
+
+	// Reporting never fails the compaction itself.
+	private void reportMetrics() {
+		try {
+			Path output = new Path(outputPath);
+			FileSystem outputFs = output.getFileSystem(conf);
+			metrics.setOutput(outputFs, output, this.targetFileSize);
+
+			if (batchPath != null) {
+				metrics.setBatch(batchPath, batchTime);
+			}
+			Map<String, Object> report = metrics.toMap(inputPath, batchOutputPath != null ? batchOutputPath : outputPath, compactionStrategy);
+			Path metricsPath = StringUtils.isEmpty(metricsOutputPath)
+					? new Path(output, METRICS_FILE)
+					: new Path(metricsOutputPath, metrics.getJobGroup() + ".json");
+			CompactionMetrics.writeJson(metricsPath.getFileSystem(conf), metricsPath, report);
+
+			if (!StringUtils.isEmpty(pushgatewayUrl)) {
+				CompactionMetrics.push(pushgatewayUrl, report);
+			}
+		} catch (IOException | RuntimeException e) {
+			LOGGER.warn("Could not report the compaction metrics", e);
+		}
+	}
+
+	private Dataset<Row> readInput(SparkSession spark, String... paths) {
+		return this.readInput(spark, null, paths);
+	}
+
+	// A given schema is used as it is instead of being inferred from the files.
+	private Dataset<Row> readInput(SparkSession spark, StructType schema, String... paths) {
+		DataFrameReader reader = schema == null ? spark.read() : spark.read().schema(schema);
+		switch (this.inputSerialization) {
+			case TEXT:
+				return reader.text(paths);
+			case PARQUET:
+				return reader.parquet(paths);
+			case AVRO:
+				// For this to work the files must end in avro
+				return reader.format("com.databricks.spark.avro").load(paths);
+			default:
+				throw new IllegalArgumentException("Did not match any serialization type: text, parquet, or avro.  Recieved: " +
+						this.inputSerialization);
+		}
+	}
+
+	// Indexed files are read from their statuses, so Spark neither checks nor lists them again.
+	private Dataset<Row> readInput(SparkSession spark, StructType schema, List<IndexedFile> files) {
+		switch (this.inputSerialization) {
+			case TEXT:
+				return IndexedRelation.read(spark, TEXT, schema, files);
+			case PARQUET:
+				return IndexedRelation.read(spark, PARQUET, schema, files);
+			case AVRO:
+				return IndexedRelation.read(spark, "com.databricks.spark.avro", schema, files);
+			default:
+				throw new IllegalArgumentException("Did not match any serialization type: text, parquet, or avro.  Recieved: " +
+						this.inputSerialization);
+		}
+	}
+
+	// The codec is passed on every write, as the jobs of a batch share one SparkSession but not their output compression.
+	// spark-avro ignores the write option, so Avro output runs in a session of its own instead.
+	private void writeOutput(Dataset<Row> dataset, String path) {
 		switch (this.outputSerialization) {
 			case TEXT:
-				Dataset<Row> textFile = spark.read().load(this.concatInputPath(inputPath));
-				textFile.coalesce(this.splitSize).write().text(outputPath);
+				this.sortRows(dataset).write().option("compression", this.outputCompression).text(path);
 				break;
 			case PARQUET: {
-				Dataset<Row> parquetFile = spark.read().parquet(this.concatInputPath(inputPath));
-				parquetFile.coalesce(this.splitSize).write().parquet(outputPath);
+				DataFrameWriter<Row> writer = this.sortRows(dataset).write()
+						.option("compression", NONE.equals(this.outputCompression) ? "uncompressed" : this.outputCompression);
+				// Write options reach the Hadoop configuration of the Parquet writer.
+				if (parquetRowGroupSizeInMB > 0) {
+					writer = writer.option(PARQUET_BLOCK_SIZE_PROPERTY, parquetRowGroupSizeInMB * 1024L * 1024L);
+				}
+				if (parquetPageSizeInKB > 0) {
+					writer = writer.option(PARQUET_PAGE_SIZE_PROPERTY, parquetPageSizeInKB * 1024L);
+				}
+				if (parquetDictionary != null) {
+					writer = writer.option(PARQUET_DICTIONARY_PROPERTY, parquetDictionary);
+				}
+				writer.parquet(path);
 				break;
 			}
-			case AVRO: {
-				// For this to work the files must end in avro
-				Dataset<Row> avroFile = spark.read().format("com.databricks.spark.avro").load(this.concatInputPath(inputPath));
-				avroFile.coalesce(this.splitSize).write().format("com.databricks.spark.avro").save(outputPath);
+			case AVRO:
+				// The codec comes from the session configuration, see compact(SparkSession).
+				this.sortRows(dataset).write().format("com.databricks.spark.avro").save(path);
 				break;
-			}
 			default:
-				System.out.println("Did not match any serialization type: text, parquet, or avro.  Recieved: " +
+				throw new IllegalArgumentException("Did not match any serialization type: text, parquet, or avro.  Recieved: " +
 						this.outputSerialization);
-				break;
 		}
 	}
 
+	// Sorting within each partition keeps the planned number of output files while clustering the sort columns in each.
+	// The configured sort columns apply to every Parquet job, so columns a job does not have are skipped.
+	private Dataset<Row> sortRows(Dataset<Row> dataset) {
+		if (sortColumns == null || sortColumns.isEmpty()) {
+			return dataset;
+		}
+
+		Set<String> fields = new HashSet<>();
+		for (String field : dataset.columns()) {
+			fields.add(field.toLowerCase());
+		}
+
+		List<Column> columns = new ArrayList<>();
+		for (String sortColumn : sortColumns) {
+			if (fields.contains(sortColumn.trim().toLowerCase())) {
+				columns.add(dataset.col(sortColumn.trim()));
+			} else {
+				LOGGER.warn("Not sorting by " + sortColumn.trim() + " as " + inputPath + " has no such column");
+			}
+		}
+		return columns.isEmpty() ? dataset : dataset.sortWithinPartitions(columns.toArray(new Column[columns.size()]));
+	}
+
+	private boolean isLayoutRequested() {
+		return (sortColumns != null && !sortColumns.isEmpty()) || parquetRowGroupSizeInMB > 0 || parquetPageSizeInKB > 0
+				|| parquetDictionary != null;
+	}
+
+	/**
+	 * Writes every group of the compaction plan as exactly one output file. Groups are written by a single Spark job
+	 * into a staging directory and then renamed into the output path. Files skipped by the planner are copied byte for
+	 * byte on the executors when no conversion is required and rewritten on their own otherwise. When the input can be
+	 * merged without decoding, the groups are merged on the executors first and only the groups the merge rejects are
+	 * rewritten through Spark.
+	 */
+	private void compactGroups(SparkSession spark) throws IOException {
+		Path output = new Path(outputPath);
+		FileSystem outputFs = output.getFileSystem(conf);
+		if (outputFs.exists(output)) {
+			throw new IOException("Output path already exists: " + outputPath);
+		}
+
+		outputFs.mkdirs(output);
+
+		Path staging = new Path(output, STAGING_DIR);
+		List<List<IndexedFile>> groups = new ArrayList<>(compactionPlan.getGroups());
+		List<IndexedFile> copies = new ArrayList<>();
+		for (IndexedFile file : compactionPlan.getSkipped()) {
+			// A copied file keeps its row order and row groups, so a requested layout needs a rewrite like a conversion.
+			if (this.isConversionRequired() || this.isLayoutRequested()) {
+				groups.add(Collections.singletonList(file));
+			} else {
+				copies.add(file);
+			}
+		}
+
+		LOGGER.info("Writing " + groups.size() + " compacted files and copying " + copies.size() + " files as-is");
+
+		List<Integer> rewrites = new ArrayList<>();
+		if (this.isRawMergeSupported() && !groups.isEmpty()) {
+			long start = System.currentTimeMillis();
+			rewrites = this.rawMerge(spark, groups, staging, output, outputFs);
+			metrics.addPhaseTime(CompactionMetrics.WRITE, System.currentTimeMillis() - start);
+		} else {
+			for (int i = 0; i < groups.size(); i++) {
+				rewrites.add(i);
+			}
+		}
+
+		if (!rewrites.isEmpty()) {
+			this.rewriteGroups(spark, groups, rewrites, new Path(staging, REWRITE_DIR), output, outputFs);
+		}
+		if (!copies.isEmpty()) {
+			long start = System.currentTimeMillis();
+			this.copyFiles(spark, copies, groups.size(), new Path(staging, COPY_DIR), output, outputFs);
+			metrics.addPhaseTime(CompactionMetrics.WRITE, System.currentTimeMillis() - start);
+		}
+
+		outputFs.delete(staging, true);
+		outputFs.create(new Path(output, SUCCESS_FILE)).close();
+	}
+
+	/**
+	 * Rewrites the given groups through Spark as a single job with one partition, and so one output file, per group.
+	 * Every group is read on its own and coalesced to a single partition, which needs no shuffle, and the groups are
+	 * then joined as the partitions of one RDD. Only the first group has its schema inferred; the others are read with
+	 * that schema, as a single read of the whole input would. The reads are set up on the driver concurrently.
+	 */
+	private void rewriteGroups(SparkSession spark, List<List<IndexedFile>> groups, List<Integer> rewrites, Path rewritePath,
+							   Path output, FileSystem outputFs) throws IOException {
+		long start = System.currentTimeMillis();
+		Dataset<Row> first = this.readInput(spark, null, groups.get(rewrites.get(0)));
+		StructType schema = first.schema();
+
+		List<JavaRDD<Row>> partitions = new ArrayList<>();
+		partitions.add(first.coalesce(1).javaRDD());
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, binPackingParallelism));
+		try {
+			List<Future<JavaRDD<Row>>> reads = new ArrayList<>();
+			for (int i = 1; i < rewrites.size(); i++) {
+				final List<IndexedFile> group = groups.get(rewrites.get(i));
+				reads.add(pool.submit(() -> this.readInput(spark, schema, group).coalesce(1).javaRDD()));
+			}
+			for (Future<JavaRDD<Row>> read : reads) {
+				partitions.add(read.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading compacted groups", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to read compacted group", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+
+		JavaRDD<Row> rows = JavaSparkContext.fromSparkContext(spark.sparkContext())
+				.union(partitions.get(0), partitions.subList(1, partitions.size()));
+		if (rows.getNumPartitions() != rewrites.size()) {
+			throw new IOException("Expected one partition per group but got " + rows.getNumPartitions() + " for "
+					+ rewrites.size() + " groups");
+		}
+		metrics.addPhaseTime(CompactionMetrics.READ, System.currentTimeMillis() - start);
+
+		start = System.currentTimeMillis();
+		this.writeOutput(spark.createDataFrame(rows, schema), rewritePath.toString());
+		metrics.addPhaseTime(CompactionMetrics.WRITE, System.currentTimeMillis() - start);
+
+		// Spark numbers every file after the partition that wrote it, which is the position of its group in the rewrites.
+		for (FileStatus fileStatus : outputFs.listStatus(rewritePath)) {
+			Matcher matcher = PART_FILE.matcher(fileStatus.getPath().getName());
+			if (FileIndex.isHidden(fileStatus.getPath()) || !matcher.matches()) {
+				continue;
+			}
+			int groupId = rewrites.get(Integer.parseInt(matcher.group(1)));
+			Path target = new Path(output, String.format("part-%05d", groupId) + extensionOf(fileStatus.getPath().getName()));
+			if (!outputFs.rename(fileStatus.getPath(), target)) {
+				throw new IOException("Failed to move " + fileStatus.getPath() + " to " + target);
+			}
+		}
+	}
+
+	// Copies the files on the executors, one task per file, so that their bytes do not stream through the driver. The
+	// copies land in the staging directory and only the copy of the attempt that succeeded is moved into the output.
+	private void copyFiles(SparkSession spark, List<IndexedFile> files, int firstId, Path staging, Path output,
+						   FileSystem outputFs) throws IOException {
+		List<RawMerger.Task> tasks = new ArrayList<>();
+		for (int i = 0; i < files.size(); i++) {
+			Path source = files.get(i).getPath();
+			String name = String.format("part-%05d", firstId + i) + extensionOf(source.getName());
+			tasks.add(new RawMerger.Task(Collections.singletonList(source.toString()), new Path(staging, name).toString()));
+		}
+
+		List<String> copied = JavaSparkContext.fromSparkContext(spark.sparkContext())
+				.parallelize(tasks, tasks.size())
+				.map(new FileCopier(spark.sparkContext().hadoopConfiguration()))
+				.collect();
+
+		for (int i = 0; i < tasks.size(); i++) {
+			Path target = new Path(output, new Path(tasks.get(i).getOutput()).getName());
+			if (!outputFs.rename(new Path(copied.get(i)), target)) {
+				throw new IOException("Failed to move " + copied.get(i) + " to " + target);
+			}
+		}
+		LOGGER.info("Copied " + files.size() + " files as-is");
+	}
+
+	/**
+	 * Merges every group on the executors without decoding its records and moves the merged files into the output path.
+	 *
+	 * @return the ids of the groups that could not be merged and still have to be rewritten through Spark
+	 */
+	private List<Integer> rawMerge(SparkSession spark, List<List<IndexedFile>> groups, Path staging, Path output,
+								   FileSystem outputFs) throws IOException {
+		List<RawMerger.Task> tasks = new ArrayList<>();
+		for (int i = 0; i < groups.size(); i++) {
+			tasks.add(new RawMerger.Task(Arrays.asList(this.groupPaths(groups.get(i))),
+					new Path(staging, this.rawMergeFileName(i)).toString()));
+		}
+
+		List<String> merged = JavaSparkContext.fromSparkContext(spark.sparkContext())
+				.parallelize(tasks, tasks.size())
+				.map(new RawMerger(spark.sparkContext().hadoopConfiguration(), this.outputSerialization, this.rawMergeCodec()))
+				.collect();
+
+		// Only the file of the attempt that succeeded is moved, other attempts are removed with the staging directory.
+		List<Integer> rewrites = new ArrayList<>();
+		for (int i = 0; i < groups.size(); i++) {
+			if (merged.get(i) == null) {
+				rewrites.add(i);
+				continue;
+			}
+			Path target = new Path(output, this.rawMergeFileName(i));
+			if (!outputFs.rename(new Path(merged.get(i)), target)) {
+				throw new IOException("Failed to move " + merged.get(i) + " to " + target);
+			}
+		}
+
+		LOGGER.info("Merged " + (groups.size() - rewrites.size()) + " of " + groups.size() + " groups without decoding");
+		return rewrites;
+	}
+
+	// Only inputs that need no conversion can be merged, and text only when its codec allows concatenated streams.
+	private boolean isRawMergeSupported() {
+		// Copied bytes keep the order, row groups and encodings of the input, so a requested layout needs a rewrite.
+		if (!rawMergeEnabled || this.isConversionRequired() || this.isLayoutRequested()) {
+			return false;
+		}
+
+		switch (this.outputSerialization) {
+			case PARQUET:
+				return !BZ2.equals(this.outputCompression);
+			case AVRO:
+				return true;
+			case TEXT:
+				return GZIP.equals(this.outputCompression) || BZ2.equals(this.outputCompression);
+			default:
+				return false;
+		}
+	}
+
+	// The codec name understood by the merger for the output compression and serialization.
+	private String rawMergeCodec() {
+		switch (this.outputSerialization) {
+			case PARQUET:
+				return NONE.equals(this.outputCompression) ? "uncompressed" : this.outputCompression;
+			case AVRO:
+				return NONE.equals(this.outputCompression) ? "null" : GZIP.equals(this.outputCompression) ? "deflate" : this.outputCompression;
+			default:
+				return this.outputCompression;
+		}
+	}
+
+	// Follows the file names Spark gives to its own output, e.g. part-00000.snappy.parquet or part-00000.txt.gz.
+	private String rawMergeFileName(int groupId) {
+		String name = String.format("part-%05d", groupId);
+		switch (this.outputSerialization) {
+			case PARQUET:
+				String codecExtension = NONE.equals(this.outputCompression) ? "" : GZIP.equals(this.outputCompression) ? ".gz" : "." + this.outputCompression;
+				return name + codecExtension + serializationExtensions.get(PARQUET);
+			case AVRO:
+				return name + serializationExtensions.get(AVRO);
+			default:
+				return name + ".txt" + codecFactory.getCodecByName(this.outputCompression).getDefaultExtension();
+		}
+	}
+
+	private String[] groupPaths(List<IndexedFile> group) {
+		String[] paths = new String[group.size()];
+		for (int i = 0; i < group.size(); i++) {
+			paths[i] = group.get(i).getPath().toString();
+		}
+		return paths;
+	}
+
+	private static String extensionOf(String fileName) {
+		int index = fileName.indexOf('.');
+		return index < 0 ? "" : fileName.substring(index);
+	}
+
+	private boolean isConversionRequired() {
+		return !this.inputSerialization.equals(this.outputSerialization) || !this.inputCompression.equals(this.outputCompression);
+	}
+
 	public static void main(String[] args) throws IOException {
 		// Defining Compact variable to process this compaction logic and parse the CLI arguments.
 		Compaction splits = new Compaction();
@@ -234,30 +800,22 @@ public class Compaction {
 		return result;
 	}
 
-	private String concatInputPath(String inputPath) throws IOException {
-		List<String> resultList = new ArrayList<>();
-
-		for (FileStatus fileStatus : fsArray) {
-			if (fileStatus.getPath().getName().startsWith("_") || fileStatus.getPath().getName().startsWith(".")) {
-				continue;
-			}
-			resultList.add(fileStatus.getPath().toString());
-		}
-
-		return StringUtils.join(resultList, ",");
+	// Spark checks and lists every path it is given on the driver, so whole directories are passed wherever possible.
+	private String[] concatInputPath(String inputPath) throws IOException {
+		return fileIndex.getReadPaths().toArray(new String[0]);
 	}
 
 	private void initializeOptions() {
 		options = new Options();
 
 		Option option = new Option("i", INPUT_PATH, true,
-				"The input file path where files need to be compacted\n(required : true)");
-		option.setRequired(true);
+				"The input file path where files need to be compacted\n(required : true, unless running a batch)");
+		option.setRequired(false);
 		options.addOption(option);
 
 		option = new Option("o", OUTPUT_PATH, true,
-				"The output directory where the files will be compacted to\n(required : true)");
-		option.setRequired(true);
+				"The output directory where the files will be compacted to\n(required : true, unless running a batch)");
+		option.setRequired(false);
 		options.addOption(option);
 
 		option = new Option("is", INPUT_SERIALIZATION, true,
@@ -281,18 +839,57 @@ public class Compaction {
 		options.addOption(option);
 
 		option = new Option("cs", COMPACTION_STRATEGY, true,
-				"The Compaction Strategy to be used to calculate the split size");
+				"The Compaction Strategy to be used to calculate the split size\n(default, size_range, bin_packing)\n(required : false)");
+		option.setRequired(false);
+		options.addOption(option);
+
+		option = new Option("b", BATCH, false,
+				"Compact every job listed under batch in application_configs.json in one Spark application\n(required : false)");
+		option.setRequired(false);
+		options.addOption(option);
+
+		option = new Option("bm", BATCH_MANIFEST, true,
+				"A JSON manifest with a batch section listing the jobs to compact in one Spark application\n(required : false)");
+		option.setRequired(false);
+		options.addOption(option);
+
+		option = new Option("sc", SORT_COLUMNS, true,
+				"Comma separated columns to sort the rows of every Parquet output file by\n(required : false)");
+		option.setRequired(false);
+		options.addOption(option);
+
+		option = new Option("prg", PARQUET_ROW_GROUP_SIZE, true,
+				"The target size in MB of the row groups of Parquet output files\n(required : false)");
+		option.setRequired(false);
+		options.addOption(option);
+
+		option = new Option("pps", PARQUET_PAGE_SIZE, true,
+				"The target size in KB of the pages of Parquet output files\n(required : false)");
+		option.setRequired(false);
+		options.addOption(option);
+
+		option = new Option("pd", PARQUET_DICTIONARY, true,
+				"Whether Parquet output files use dictionary encoding\n(true, false)\n(required : false)");
+		option.setRequired(false);
+		options.addOption(option);
+
+		option = new Option("wi", WATCH_INTERVAL, true,
+				"Keep running and compact the files that arrive in the input path, polling it every given number of seconds\n(required : false)");
 		option.setRequired(false);
 		options.addOption(option);
 	}
 
 	private void printHelp(String additionalMessage) {
+		if (!exitOnInvalidOptions) {
+			throw new IllegalArgumentException("Invalid compaction options: " + additionalMessage);
+		}
+
 		HelpFormatter formatter = new HelpFormatter();
 		formatter.printHelp("SparkCompaction [options] " + additionalMessage, options);
 		System.exit(1);
 	}
 
-	private CommandLine parseCli(String[] args) throws IllegalArgumentException, IOException {
+	private CommandLine parseOptions(String[] args) {
 		this.initializeOptions();
 
 		CommandLineParser parser = new GnuParser();
@@ -301,7 +898,19 @@ public class Compaction {
 		try {
 			line = parser.parse(options, args);
 		} catch (ParseException e) {
-			printHelp("");
+			printHelp(e.getMessage());
+		}
+
+		return line;
+	}
+
+	private CommandLine parseCli(String[] args) throws IllegalArgumentException, IOException {
+		return this.parseCli(this.parseOptions(args));
+	}
+
+	private CommandLine parseCli(CommandLine line) throws IllegalArgumentException, IOException {
+		if (!line.hasOption(INPUT_PATH) || !line.hasOption(OUTPUT_PATH)) {
+			printHelp("Missing required options: " + INPUT_PATH + ", " + OUTPUT_PATH);
 		}
 
 		this.setInputPath(line.getOptionValue(INPUT_PATH));
@@ -313,17 +922,79 @@ public class Compaction {
 		if(compactionStrategyFromCli != null){
 			this.setCompactionStrategy(compactionStrategyFromCli);
 		} else{
-			this.setCompactionStrategy("default");
+			this.setCompactionStrategy(DEFAULT_STRATEGY);
 		}
 
-
 		return line;
 	}
 
+	/**
+	 * Layout options from the command line take precedence over the parquet section of application_configs.json. The
+	 * section only applies to Parquet output, as do the Parquet options on the command line, so a global setting does not
+	 * change how text and Avro jobs are written. Sort columns given on the command line apply to every serialization.
+	 */
+	private void setLayoutOptions(CommandLine line) {
+		boolean parquetOutput = PARQUET.equals(this.outputSerialization);
+
+		if (!parquetOutput) {
+			if (line.hasOption(SORT_COLUMNS) || line.hasOption(PARQUET_ROW_GROUP_SIZE) || line.hasOption(PARQUET_PAGE_SIZE)
+					|| line.hasOption(PARQUET_DICTIONARY)) {
+				LOGGER.warn("Ignoring the Parquet layout options for " + this.outputSerialization + " output");
+			}
+			return;
+		}
+
+		String sc = line.getOptionValue(SORT_COLUMNS);
+		if (sc != null) {
+			this.setSortColumns(Arrays.asList(StringUtils.split(sc, ",")));
+		} else if (config.hasPath(CONFIG_SORT_COLUMNS)) {
+			this.setSortColumns(config.getStringList(CONFIG_SORT_COLUMNS));
+		}
+
+		String rowGroupSize = line.getOptionValue(PARQUET_ROW_GROUP_SIZE);
+		if (rowGroupSize != null) {
+			this.setParquetRowGroupSizeInMB(this.parseSize(PARQUET_ROW_GROUP_SIZE, rowGroupSize));
+		} else if (config.hasPath(CONFIG_ROW_GROUP_SIZE)) {
+			this.setParquetRowGroupSizeInMB(config.getInt(CONFIG_ROW_GROUP_SIZE));
+		}
+
+		String pageSize = line.getOptionValue(PARQUET_PAGE_SIZE);
+		if (pageSize != null) {
+			this.setParquetPageSizeInKB(this.parseSize(PARQUET_PAGE_SIZE, pageSize));
+		} else if (config.hasPath(CONFIG_PAGE_SIZE)) {
+			this.setParquetPageSizeInKB(config.getInt(CONFIG_PAGE_SIZE));
+		}
+
+		String dictionary = line.getOptionValue(PARQUET_DICTIONARY);
+		if (dictionary != null) {
+			if (!TRUE.equalsIgnoreCase(dictionary) && !"false".equalsIgnoreCase(dictionary)) {
+				printHelp("Invalid value for " + PARQUET_DICTIONARY + ": " + dictionary);
+			}
+			this.setParquetDictionary(dictionary.toLowerCase());
+		} else if (config.hasPath(CONFIG_DICTIONARY)) {
+			this.setParquetDictionary(String.valueOf(config.getBoolean(CONFIG_DICTIONARY)));
+		}
+	}
+
+	private int parseSize(String option, String value) {
+		try {
+			int size = Integer.parseInt(value.trim());
+			if (size >= 0) {
+				return size;
+			}
+		} catch (NumberFormatException e) {
+			// Reported below along with negative sizes.
+		}
+		printHelp("Invalid value for " + option + ": " + value);
+		return 0;
+	}
+
 	private void setCompressionAndSerializationOptions(CommandLine line) throws IOException {
 		String ic = line.getOptionValue(INPUT_COMPRESSION);
 		if (ic == null) {
 			this.setInputCompression(new Path(this.getInputPath()));
+		} else {
+			this.setInputCompression(ic);
 		}
 
 		String is = line.getOptionValue(INPUT_SERIALIZATION);
@@ -345,7 +1016,40 @@ public class Compaction {
 			this.setOutputSerialization(os);
 		}
 
+		// Avro files never carry their codec in the file name, so it is read from the header of the first file instead.
+		if (ic == null && AVRO.equals(this.inputSerialization) && NONE.equals(this.inputCompression)) {
+			this.setInputCompression(this.readAvroCompression());
+			if (oc == null) {
+				this.setOutputCompression(this.getInputCompression());
+			}
+		}
+
 		this.validateCompressionAndSerializationOptions();
+		this.setLayoutOptions(line);
+	}
+
+	private String readAvroCompression() throws IOException {
+		if (this.fileIndex.getFiles().isEmpty()) {
+			return NONE;
+		}
+
+		Path path = this.fileIndex.getFiles().get(0).getPath();
+		String codec;
+		try (DataFileStream<GenericRecord> in = new DataFileStream<>(path.getFileSystem(conf).open(path), new GenericDatumReader<GenericRecord>())) {
+			codec = in.getMetaString(DataFileConstants.CODEC);
+		}
+
+		if (codec == null || DataFileConstants.NULL_CODEC.equals(codec)) {
+			return NONE;
+		} else if (DataFileConstants.DEFLATE_CODEC.equals(codec)) {
+			return GZIP;
+		} else if (DataFileConstants.SNAPPY_CODEC.equals(codec)) {
+			return SNAPPY;
+		} else if (DataFileConstants.BZIP2_CODEC.equals(codec)) {
+			return BZ2;
+		}
+		LOGGER.warn("Avro codec " + codec + " of " + path + " is not supported, keeping snappy as the output default");
+		return SNAPPY;
 	}
 
 	private void validateCompressionAndSerializationOptions() throws IllegalArgumentException, IOException {
@@ -374,11 +1078,17 @@ public class Compaction {
 
 		this.setInputCompressionRatio(this.inputCompression, this.inputSerialization);
 		this.setOutputCompressionRatio(this.outputCompression, this.outputSerialization);
+	}
+
+	private void planCompaction() throws IOException {
 		this.setInputPathSize(this.inputPath);
 
-		if (compactionStrategy.equals("size_range")) {
+		if (compactionStrategy.equals(SIZE_RANGE_STRATEGY)) {
 			LOGGER.info("Setting Number of partitions using Size Range Strategy");
 			this.setSplitSize(SIZE_RANGES_FOR_COMPACTION, this.inputPath);
+		} else if (compactionStrategy.equals(BIN_PACKING_STRATEGY)) {
+			LOGGER.info("Planning output files using Bin Packing Strategy");
+			this.setCompactionPlan(this.outputPath);
 		} else {
 			LOGGER.info("Setting Number of partitions using Default Strategy");
 			this.setSplitSize(this.outputPath);
@@ -395,14 +1105,7 @@ public class Compaction {
 	}
 
 	public void setInputPathSize(String inputPath) throws IOException {
-		long fileSize = 0;
-
-		for (FileStatus fileStatus : this.fsArray) {
-			if (fileStatus.getPath().getName().startsWith("_") || fileStatus.getPath().getName().startsWith(".")) {
-				continue;
-			}
-			fileSize = fileSize + this.fs.getContentSummary(fileStatus.getPath()).getSpaceConsumed();
-		}
+		long fileSize = this.fileIndex.getTotalSpaceConsumed();
 
 		this.inputPathSize = (long) (fileSize * this.inputCompressionRatio);
 	}
@@ -417,6 +1120,7 @@ public class Compaction {
 
 	public void setSplitSize(String outputPath) throws IOException {
 		this.setOutputBlockSize(outputPath);
+		this.targetFileSize = (long) this.outputBlockSize;
 		double inputPathSizeDouble = (double) this.inputPathSize;
 		this.splitSize = (int) (Math.floor(((inputPathSizeDouble / this.outputCompressionRatio) / this.outputBlockSize)) + 1.0);
 	}
@@ -429,9 +1133,7 @@ public class Compaction {
 
 	private void setSplitSize(List<Map<String, Integer>> SIZE_RANGES_FOR_COMPACTION, String inputPath) throws IOException {
 
-		FileSystem fs = FileSystem.get(conf);
-		Path filenamePath = new Path(inputPath);
-		long hdfsDirSize = fs.getContentSummary(filenamePath).getSpaceConsumed();
+		long hdfsDirSize = this.fileIndex.getTotalSpaceConsumed();
 		double hdfsDirSizeInMB = hdfsDirSize * 0.00000095367432;
 		double hdfsDirSizeInGB = hdfsDirSizeInMB * 0.0009756;
 
@@ -448,10 +1150,66 @@ public class Compaction {
 			if ((minSizeInGB <= hdfsDirSizeInGB) && (maxSizeInGB >= hdfsDirSizeInGB)) {
 				int numberOfPartitions = (int) Math.round(hdfsDirSizeInMB / sizeInMbAfterCompaction);
 				this.splitSize = numberOfPartitions;
+				this.targetFileSize = (long) (sizeInMbAfterCompaction * 1024 * 1024);
 			}
 		}
 	}
 
+	public CompactionPlanner.Plan getCompactionPlan() {
+		return compactionPlan;
+	}
+
+	public void setCompactionPlan(CompactionPlanner.Plan compactionPlan) {
+		this.compactionPlan = compactionPlan;
+	}
+
+	public void setCompactionPlan(String outputPath) throws IOException {
+		this.setOutputBlockSize(outputPath);
+		long targetSize = binPackingTargetSizeInMB > 0 ? binPackingTargetSizeInMB * 1024L * 1024L : (long) this.outputBlockSize;
+		long skipThreshold = (long) (targetSize * binPackingSkipThresholdRatio);
+
+		this.compactionPlan = CompactionPlanner.binPack(this.fileIndex.getFiles(),
+				this.inputCompressionRatio / this.outputCompressionRatio, targetSize, skipThreshold);
+		this.splitSize = this.compactionPlan.getGroups().size();
+		this.targetFileSize = targetSize;
+
+		LOGGER.info("Bin Packing Target Size: " + targetSize);
+		LOGGER.info("Bin Packing Groups: " + this.compactionPlan.getGroups().size());
+		LOGGER.info("Bin Packing Skipped Files: " + this.compactionPlan.getSkipped().size());
+	}
+
+	public List<String> getSortColumns() {
+		return sortColumns;
+	}
+
+	public void setSortColumns(List<String> sortColumns) {
+		this.sortColumns = sortColumns;
+	}
+
+	public int getParquetRowGroupSizeInMB() {
+		return parquetRowGroupSizeInMB;
+	}
+
+	public void setParquetRowGroupSizeInMB(int parquetRowGroupSizeInMB) {
+		this.parquetRowGroupSizeInMB = parquetRowGroupSizeInMB;
+	}
+
+	public int getParquetPageSizeInKB() {
+		return parquetPageSizeInKB;
+	}
+
+	public void setParquetPageSizeInKB(int parquetPageSizeInKB) {
+		this.parquetPageSizeInKB = parquetPageSizeInKB;
+	}
+
+	public String getParquetDictionary() {
+		return parquetDictionary;
+	}
+
+	public void setParquetDictionary(String parquetDictionary) {
+		this.parquetDictionary = parquetDictionary.toLowerCase();
+	}
+
 	public double getInputCompressionRatio() {
 		return inputCompressionRatio;
 	}
@@ -460,6 +1218,63 @@ public class Compaction {
 		this.inputCompressionRatio = inputCompressionRatio;
 	}
 
+	/**
+	 * Replaces the assumed compression ratios with measured ones when the output is not written like the input. A sample
+	 * of the input is written through the output codec, serialization and layout, and the ratios are set so that their
+	 * quotient, which is all the planning uses, is the size the sample took divided by its stored input size. Measured
+	 * ratios are cached per input path; the assumed ratios stay in place if nothing can be measured.
+	 */
+	public void setCompressionRatios(SparkSession spark) {
+		// Output written like the input has equal assumed ratios, which cancel out, so there is nothing to measure.
+		if (!ratioEstimationEnabled || this.fileIndex.getFiles().isEmpty()
+				|| (!this.isConversionRequired() && !this.isLayoutRequested())) {
+			return;
+		}
+
+		String key = StringUtils.join(new String[]{this.inputPath, this.inputSerialization, this.inputCompression,
+				this.outputSerialization, this.outputCompression, String.valueOf(this.sortColumns),
+				String.valueOf(this.parquetRowGroupSizeInMB), String.valueOf(this.parquetPageSizeInKB),
+				String.valueOf(this.parquetDictionary)}, "|");
+		try {
+			CompressionRatioEstimator estimator = new CompressionRatioEstimator(spark.sparkContext().hadoopConfiguration(),
+					new Path(ratioCachePath));
+			double[] ratios = estimator.getCachedRatios(key);
+
+			if (ratios == null) {
+				List<IndexedFile> sample = CompressionRatioEstimator.sample(this.fileIndex.getFiles(), ratioSampleSizeInMB * 1024L * 1024L);
+				Path samplePath = estimator.newSamplePath();
+				FileSystem sampleFs = samplePath.getFileSystem(conf);
+				long written;
+				try {
+					this.writeOutput(this.readInput(spark, null, sample), samplePath.toString());
+					written = sampleFs.getContentSummary(samplePath).getLength();
+				} finally {
+					sampleFs.delete(samplePath, true);
+				}
+				if (written == 0) {
+					throw new IOException("The sampled input produced no output");
+				}
+
+				// Input sizes are taken as they are stored, so the output ratio alone carries the measurement.
+				double inputRatio = 1.0;
+				double outputRatio = (double) CompressionRatioEstimator.length(sample) / written;
+				ratios = new double[]{inputRatio, outputRatio};
+				try {
+					estimator.putCachedRatios(key, inputRatio, outputRatio);
+				} catch (IOException e) {
+					LOGGER.warn("Could not cache the measured compression ratios", e);
+				}
+			}
+
+			this.setInputCompressionRatio(ratios[0]);
+			this.setOutputCompressionRatio(ratios[1]);
+			LOGGER.info("Measured Input Compression Ratio: " + ratios[0]);
+			LOGGER.info("Measured Output Compression Ratio: " + ratios[1]);
+		} catch (IOException | RuntimeException e) {
+			LOGGER.warn("Could not measure compression ratios, using the assumed ratios instead", e);
+		}
+	}
+
 	public void setInputCompressionRatio(String compressionType, String serializationType) {
 		this.inputCompressionRatio = this.compressionRatios.get(this.makeKey(serializationType, compressionType));
 	}
@@ -480,10 +1295,27 @@ public class Compaction {
 		return inputPath;
 	}
 
+	// An index set beforehand through setFileIndex is kept, so a caller that already knows the files skips the listing.
 	public void setInputPath(String inputPath) throws IllegalArgumentException, IOException {
 		this.inputPath = inputPath;
 		this.fs = new Path(this.inputPath).getFileSystem(conf);
-		this.fsArray = fs.globStatus(new Path(this.inputPath));
+		if (this.fileIndex == null) {
+			this.fileIndex = this.scanInput(inputPath, null);
+		}
+	}
+
+	FileIndex scanInput(String inputPath, FileIndex.ListingCache cache) throws IOException {
+		FileSystem inputFs = new Path(inputPath).getFileSystem(conf);
+		return FileIndex.scan(inputFs, inputFs.globStatus(new Path(inputPath)), codecFactory, serializationExtensions,
+				listingThreads, cache);
+	}
+
+	public FileIndex getFileIndex() {
+		return fileIndex;
+	}
+
+	public void setFileIndex(FileIndex fileIndex) {
+		this.fileIndex = fileIndex;
 	}
 
 	public String getInputCompression() {
@@ -491,25 +1323,15 @@ public class Compaction {
 	}
 
 	public void setInputCompression(Path inputPath) throws IOException {
-		CompressionCodec fileCodec = null;
-
-		if (fsArray[0].isDirectory()) {
-			fsArray = fs.listStatus(inputPath);
+		// Codec and serialization were detected per file while indexing, so no further listing is needed here.
+		String fileSerialization = this.fileIndex.getSerialization();
+		if (fileSerialization != null) {
+			this.inputSerialization = fileSerialization;
 		}
 
-		for (FileStatus fileStatus : fsArray) {
-			if (fileStatus.getPath().getName().startsWith("_") || fileStatus.getPath().getName().startsWith(".")) {
-				continue;
-			}
-
-			this.inputCompressionPath = (Path) null;
-			this.getInputSerialization(fileStatus.getPath().toString());
-			fileCodec = codecFactory.getCodec(this.inputCompressionPath);
-
-			if (fileCodec != null) {
-				this.inputCompression = this.compressionTypes.get(codecFactory.getCodec(this.inputCompressionPath));
-				break;
-			}
+		CompressionCodec fileCodec = this.fileIndex.getCodec();
+		if (fileCodec != null) {
+			this.inputCompression = this.compressionTypes.get(fileCodec);
 		}
 	}
 
@@ -553,6 +1375,16 @@ public class Compaction {
 		this.outputPath = outputPath;
 	}
 
+	/**
+	 * Reports this run as a batch of the given output path, for runs that write into a staging directory which is
+	 * committed at the batch path once the run is done.
+	 */
+	void setBatch(String batchOutputPath, String batchPath, long batchTime) {
+		this.batchOutputPath = batchOutputPath;
+		this.batchPath = batchPath;
+		this.batchTime = batchTime;
+	}
+
 	public String getOutputCompression() {
 		return outputCompression;
 	}
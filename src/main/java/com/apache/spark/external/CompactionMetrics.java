@@ -0,0 +1,317 @@
+package com.apache.spark.external;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.SparkContext;
+import org.apache.spark.executor.TaskMetrics;
+import org.apache.spark.scheduler.SparkListener;
+import org.apache.spark.scheduler.SparkListenerJobEnd;
+import org.apache.spark.scheduler.SparkListenerJobStart;
+import org.apache.spark.scheduler.SparkListenerStageSubmitted;
+import org.apache.spark.scheduler.SparkListenerTaskEnd;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Collects the performance metrics of one compaction run: the time spent in each phase, the bytes and records Spark
+ * read, wrote and shuffled, how skewed the task durations were and how the sizes of the output files compare with the
+ * target size. Spark metrics are gathered through a SparkListener and only count the jobs of the run's job group, so
+ * concurrent runs of a batch do not mix. The report is written as JSON and can be pushed to a Prometheus pushgateway.
+ *
+ * Bytes copied by the raw merge are not seen by Spark's input and output metrics; the output section, taken from a
+ * listing of the output path, covers every run.
+ */
+public class CompactionMetrics extends SparkListener {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CompactionMetrics.class);
+
+	public static final String LISTING = "listing";
+	public static final String DETECTION = "detection";
+	public static final String PLANNING = "planning";
+	public static final String READ = "read";
+	public static final String WRITE = "write";
+
+	private static final String JOB_GROUP_PROPERTY = "spark.jobGroup.id";
+	private static final String PUSHGATEWAY_JOB = "spark_compaction";
+	private static final long JOB_WAIT_MILLIS = 30000L;
+
+	private final String jobGroup = "compaction-" + UUID.randomUUID();
+	private final long startTime = System.currentTimeMillis();
+	private final Map<String, Long> phases = new LinkedHashMap<>();
+	private final Set<Integer> stages = new HashSet<>();
+	private final Set<Integer> jobs = new HashSet<>();
+	private final Set<Integer> finishedJobs = new HashSet<>();
+	private final Map<Integer, List<Long>> taskDurations = new HashMap<>();
+
+	private long bytesRead;
+	private long recordsRead;
+	private long bytesWritten;
+	private long recordsWritten;
+	private long shuffleBytesRead;
+	private long shuffleBytesWritten;
+	private long tasks;
+
+	private Map<String, Object> input = new LinkedHashMap<>();
+	private Map<String, Object> output = new LinkedHashMap<>();
+	private String batchPath;
+	private long batchTime;
+
+	public String getJobGroup() {
+		return jobGroup;
+	}
+
+	/**
+	 * Job group for the jobs of the run that are not part of the compaction itself, such as the compression ratio
+	 * sample, which are therefore not counted.
+	 */
+	public String getSideJobGroup() {
+		return jobGroup + "-side";
+	}
+
+	private boolean isOwnGroup(Properties properties) {
+		return properties != null && jobGroup.equals(properties.getProperty(JOB_GROUP_PROPERTY));
+	}
+
+	@Override
+	public synchronized void onJobStart(SparkListenerJobStart jobStart) {
+		if (isOwnGroup(jobStart.properties())) {
+			jobs.add(jobStart.jobId());
+		}
+	}
+
+	@Override
+	public synchronized void onJobEnd(SparkListenerJobEnd jobEnd) {
+		if (jobs.contains(jobEnd.jobId())) {
+			finishedJobs.add(jobEnd.jobId());
+		}
+	}
+
+	@Override
+	public synchronized void onStageSubmitted(SparkListenerStageSubmitted stageSubmitted) {
+		if (isOwnGroup(stageSubmitted.properties())) {
+			stages.add(stageSubmitted.stageInfo().stageId());
+		}
+	}
+
+	@Override
+	public synchronized void onTaskEnd(SparkListenerTaskEnd taskEnd) {
+		TaskMetrics metrics = taskEnd.taskMetrics();
+		if (!stages.contains(taskEnd.stageId()) || metrics == null) {
+			return;
+		}
+
+		tasks++;
+		bytesRead += metrics.inputMetrics().bytesRead();
+		recordsRead += metrics.inputMetrics().recordsRead();
+		bytesWritten += metrics.outputMetrics().bytesWritten();
+		recordsWritten += metrics.outputMetrics().recordsWritten();
+		shuffleBytesRead += metrics.shuffleReadMetrics().totalBytesRead();
+		shuffleBytesWritten += metrics.shuffleWriteMetrics().bytesWritten();
+		taskDurations.computeIfAbsent(taskEnd.stageId(), stage -> new ArrayList<>()).add(taskEnd.taskInfo().duration());
+	}
+
+	/**
+	 * Adds to the time of a phase. Phases that run on several threads at once, such as the writes of the groups of a
+	 * plan, add up the time of every thread.
+	 */
+	public synchronized void addPhaseTime(String phase, long millis) {
+		phases.put(phase, phases.getOrDefault(phase, 0L) + millis);
+	}
+
+	/**
+	 * Reports the run as one batch of its output path, committed at the given path and time.
+	 */
+	public synchronized void setBatch(String batchPath, long batchTime) {
+		this.batchPath = batchPath;
+		this.batchTime = batchTime;
+	}
+
+	public synchronized void setInput(FileIndex fileIndex) {
+		input.put("files", fileIndex.getFiles().size());
+		input.put("bytes", fileIndex.getTotalLength());
+	}
+
+	/**
+	 * Lists the files written to the output path and compares their sizes with the target size.
+	 */
+	public void setOutput(FileSystem fs, Path outputPath, long targetFileSize) throws IOException {
+		List<Long> sizes = new ArrayList<>();
+		if (fs.exists(outputPath)) {
+			for (FileStatus fileStatus : fs.listStatus(outputPath)) {
+				if (fileStatus.isFile() && !FileIndex.isHidden(fileStatus.getPath())) {
+					sizes.add(fileStatus.getLen());
+				}
+			}
+		}
+		Collections.sort(sizes);
+
+		long total = 0;
+		for (long size : sizes) {
+			total += size;
+		}
+		double mean = sizes.isEmpty() ? 0 : (double) total / sizes.size();
+
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("files", sizes.size());
+		result.put("bytes", total);
+		result.put("target_file_size", targetFileSize);
+		result.put("min_file_size", sizes.isEmpty() ? 0 : sizes.get(0));
+		result.put("p50_file_size", percentile(sizes, 0.5));
+		result.put("p90_file_size", percentile(sizes, 0.9));
+		result.put("max_file_size", sizes.isEmpty() ? 0 : sizes.get(sizes.size() - 1));
+		result.put("mean_file_size", mean);
+		result.put("mean_to_target_ratio", targetFileSize > 0 ? mean / targetFileSize : 0);
+
+		synchronized (this) {
+			output = result;
+		}
+	}
+
+	private static long percentile(List<Long> sorted, double percentile) {
+		if (sorted.isEmpty()) {
+			return 0;
+		}
+		return sorted.get((int) Math.min(sorted.size() - 1, Math.floor(percentile * sorted.size())));
+	}
+
+	/**
+	 * Waits, for a bounded time, until the listener has seen the end of every job the run submitted, as listener
+	 * events are delivered asynchronously.
+	 */
+	public void awaitJobs(SparkContext sparkContext) {
+		long deadline = System.currentTimeMillis() + JOB_WAIT_MILLIS;
+		while (System.currentTimeMillis() < deadline) {
+			int submitted = sparkContext.statusTracker().getJobIdsForGroup(jobGroup).length;
+			synchronized (this) {
+				if (finishedJobs.size() >= submitted && finishedJobs.size() >= jobs.size()) {
+					return;
+				}
+			}
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		LOGGER.warn("Timed out waiting for the Spark metrics of " + jobGroup);
+	}
+
+	public synchronized Map<String, Object> toMap(String inputPath, String outputPath, String compactionStrategy) {
+		long duration = System.currentTimeMillis() - startTime;
+
+		double maxSkew = 0;
+		int skewedStage = -1;
+		for (Map.Entry<Integer, List<Long>> stage : taskDurations.entrySet()) {
+			List<Long> durations = new ArrayList<>(stage.getValue());
+			Collections.sort(durations);
+			long median = percentile(durations, 0.5);
+			double skew = median > 0 ? (double) durations.get(durations.size() - 1) / median : 0;
+			if (skew > maxSkew) {
+				maxSkew = skew;
+				skewedStage = stage.getKey();
+			}
+		}
+
+		Map<String, Object> spark = new LinkedHashMap<>();
+		spark.put("jobs", jobs.size());
+		spark.put("tasks", tasks);
+		spark.put("bytes_read", bytesRead);
+		spark.put("records_read", recordsRead);
+		spark.put("bytes_written", bytesWritten);
+		spark.put("records_written", recordsWritten);
+		spark.put("shuffle_bytes_read", shuffleBytesRead);
+		spark.put("shuffle_bytes_written", shuffleBytesWritten);
+		spark.put("max_task_skew", maxSkew);
+		spark.put("max_task_skew_stage", skewedStage);
+
+		Map<String, Object> throughput = new LinkedHashMap<>();
+		double seconds = Math.max(1, duration) / 1000.0;
+		throughput.put("input_files_per_second", ((Number) input.getOrDefault("files", 0)).doubleValue() / seconds);
+		throughput.put("input_bytes_per_second", ((Number) input.getOrDefault("bytes", 0L)).doubleValue() / seconds);
+
+		Map<String, Object> report = new LinkedHashMap<>();
+		report.put("input_path", inputPath);
+		report.put("output_path", outputPath);
+		if (batchPath != null) {
+			report.put("batch_path", batchPath);
+			report.put("batch_time", batchTime);
+		}
+		report.put("compaction_strategy", compactionStrategy);
+		report.put("started_at", startTime);
+		report.put("duration_ms", duration);
+		report.put("phases_ms", new LinkedHashMap<>(phases));
+		report.put("input", input);
+		report.put("output", output);
+		report.put("spark", spark);
+		report.put("throughput", throughput);
+		return report;
+	}
+
+	public static void writeJson(FileSystem fs, Path path, Map<String, Object> report) throws IOException {
+		try (FSDataOutputStream out = fs.create(path, true)) {
+			new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue((OutputStream) out, report);
+		}
+		LOGGER.info("Wrote compaction metrics to " + path);
+	}
+
+	/**
+	 * Pushes every numeric metric of the report as a gauge in the Prometheus text format, grouped by the output path.
+	 * Each push replaces the metrics of the previous run of the same output path, so the batches of an incremental
+	 * compaction keep one series per metric and are told apart by batch_time.
+	 */
+	public static void push(String pushgatewayUrl, Map<String, Object> report) throws IOException {
+		StringBuilder body = new StringBuilder();
+		appendGauges(body, PUSHGATEWAY_JOB, report);
+
+		String instance = Base64.getUrlEncoder().encodeToString(String.valueOf(report.get("output_path")).getBytes(StandardCharsets.UTF_8));
+		URL url = new URL(pushgatewayUrl.replaceAll("/+$", "") + "/metrics/job/" + PUSHGATEWAY_JOB + "/instance@base64/" + instance);
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setRequestProperty("Content-Type", "text/plain; version=0.0.4");
+		try (OutputStream out = connection.getOutputStream()) {
+			out.write(body.toString().getBytes(StandardCharsets.UTF_8));
+		}
+
+		int status = connection.getResponseCode();
+		connection.disconnect();
+		if (status / 100 != 2) {
+			throw new IOException("Pushgateway " + url + " answered " + status);
+		}
+		LOGGER.info("Pushed compaction metrics to " + url);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void appendGauges(StringBuilder body, String prefix, Map<String, Object> values) {
+		for (Map.Entry<String, Object> value : values.entrySet()) {
+			String name = prefix + "_" + value.getKey();
+			if (value.getValue() instanceof Map) {
+				appendGauges(body, name, (Map<String, Object>) value.getValue());
+			} else if (value.getValue() instanceof Number) {
+				body.append("# TYPE ").append(name).append(" gauge\n");
+				body.append(name).append(' ').append(value.getValue()).append('\n');
+			}
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package com.apache.spark.external;
+
+import com.apache.spark.external.FileIndex.IndexedFile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Groups the indexed input files into output files of a predictable size.
+ *
+ * Sizes are estimated in output bytes, i.e. the stored input length multiplied by the ratio between the input and
+ * output compression ratios, so that a group is sized by what it will occupy once rewritten.
+ */
+public class CompactionPlanner {
+
+	private CompactionPlanner() {
+	}
+
+	/**
+	 * Best-fit decreasing bin packing. Every file whose estimated output size reaches the skip threshold is left out of
+	 * the groups, the remaining files are placed largest first into the open group with the least room that still fits
+	 * them, and a new group is opened when none does.
+	 */
+	public static Plan binPack(List<IndexedFile> files, double sizeFactor, long targetSize, long skipThreshold) {
+		List<IndexedFile> candidates = new ArrayList<>();
+		List<IndexedFile> skipped = new ArrayList<>();
+
+		for (IndexedFile file : files) {
+			if (estimate(file, sizeFactor) >= skipThreshold) {
+				skipped.add(file);
+			} else {
+				candidates.add(file);
+			}
+		}
+
+		candidates.sort(Collections.reverseOrder(Comparator.comparingLong(IndexedFile::getLength)));
+
+		List<List<IndexedFile>> groups = new ArrayList<>();
+		TreeMap<Long, List<Integer>> openGroups = new TreeMap<>();
+		long[] remaining = new long[candidates.size()];
+
+		for (IndexedFile file : candidates) {
+			long size = estimate(file, sizeFactor);
+			Map.Entry<Long, List<Integer>> fit = openGroups.ceilingEntry(size);
+
+			int group;
+			if (fit == null) {
+				group = groups.size();
+				groups.add(new ArrayList<>());
+				remaining[group] = targetSize;
+			} else {
+				group = fit.getValue().remove(fit.getValue().size() - 1);
+				if (fit.getValue().isEmpty()) {
+					openGroups.remove(fit.getKey());
+				}
+			}
+
+			groups.get(group).add(file);
+			remaining[group] = remaining[group] - size;
+			if (remaining[group] > 0) {
+				openGroups.computeIfAbsent(remaining[group], key -> new ArrayList<>()).add(group);
+			}
+		}
+
+		return new Plan(groups, skipped);
+	}
+
+	/**
+	 * Spreads the files over a fixed number of groups, largest first into the group with the smallest estimated size,
+	 * so that the split size computed by the default and size_range strategies can be honoured file by file.
+	 */
+	public static Plan balance(List<IndexedFile> files, int groupCount, double sizeFactor) {
+		int count = Math.max(1, Math.min(groupCount, files.size()));
+		List<IndexedFile> candidates = new ArrayList<>(files);
+		candidates.sort(Collections.reverseOrder(Comparator.comparingLong(IndexedFile::getLength)));
+
+		List<List<IndexedFile>> groups = new ArrayList<>();
+		long[] sizes = new long[count];
+		PriorityQueue<Integer> smallest = new PriorityQueue<>(count,
+				Comparator.<Integer>comparingLong(group -> sizes[group]).thenComparing(Comparator.naturalOrder()));
+		for (int i = 0; i < count; i++) {
+			groups.add(new ArrayList<>());
+			smallest.add(i);
+		}
+
+		for (IndexedFile file : candidates) {
+			int group = smallest.poll();
+			groups.get(group).add(file);
+			sizes[group] = sizes[group] + estimate(file, sizeFactor);
+			smallest.add(group);
+		}
+
+		groups.removeIf(List::isEmpty);
+		return new Plan(groups, new ArrayList<>());
+	}
+
+	public static long estimate(IndexedFile file, double sizeFactor) {
+		return (long) (file.getLength() * sizeFactor);
+	}
+
+	public static class Plan {
+
+		private final List<List<IndexedFile>> groups;
+		private final List<IndexedFile> skipped;
+
+		public Plan(List<List<IndexedFile>> groups, List<IndexedFile> skipped) {
+			this.groups = groups;
+			this.skipped = skipped;
+		}
+
+		public List<List<IndexedFile>> getGroups() {
+			return groups;
+		}
+
+		// Files already at or above the skip threshold; they are carried over to the output without being rewritten.
+		public List<IndexedFile> getSkipped() {
+			return skipped;
+		}
+	}
+}
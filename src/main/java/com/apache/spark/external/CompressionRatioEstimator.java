@@ -0,0 +1,142 @@
+package com.apache.spark.external;
+
+import com.apache.spark.external.FileIndex.IndexedFile;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * Picks the sample of the input that is written through the output settings to measure compression ratios, and keeps
+ * the measured ratios of every input path in the cache directory so that a repeated run does not sample the same
+ * input again.
+ *
+ * Every key is cached in a file of its own, written to a temporary file and renamed into place, so that applications
+ * running at the same time never overwrite each other's entries or read a partial one.
+ */
+public class CompressionRatioEstimator {
+
+	private static final int MAX_SAMPLE_FILES = 1000;
+	private static final String KEY = "key";
+	private static final String RATIOS = "ratios";
+
+	private final FileSystem fs;
+	private final Path cachePath;
+
+	public CompressionRatioEstimator(Configuration conf, Path cachePath) throws IOException {
+		this.fs = cachePath.getFileSystem(conf);
+		this.cachePath = cachePath;
+	}
+
+	/**
+	 * Picks files spread evenly over the index until their combined length reaches the sample size. A file longer than
+	 * what is left of the sample size is passed over, so that a single large file cannot blow up the sample; when no
+	 * file fits at all, the smallest file looked at is taken alone.
+	 */
+	public static List<IndexedFile> sample(List<IndexedFile> files, long sampleSize) {
+		List<IndexedFile> sample = new ArrayList<>();
+		IndexedFile smallest = null;
+		int stride = Math.max(1, files.size() / MAX_SAMPLE_FILES);
+		long sampled = 0;
+
+		for (int i = 0; i < files.size() && sampled < sampleSize; i += stride) {
+			IndexedFile file = files.get(i);
+			if (smallest == null || file.getLength() < smallest.getLength()) {
+				smallest = file;
+			}
+			if (file.getLength() > sampleSize - sampled) {
+				continue;
+			}
+			sample.add(file);
+			sampled += file.getLength();
+		}
+
+		if (sample.isEmpty() && smallest != null) {
+			sample.add(smallest);
+		}
+		return sample;
+	}
+
+	public static long length(List<IndexedFile> files) {
+		long length = 0;
+		for (IndexedFile file : files) {
+			length += file.getLength();
+		}
+		return length;
+	}
+
+	// A scratch directory next to the cache directory for writing sample output.
+	public Path newSamplePath() {
+		return new Path(cachePath.getParent(), "_sample-" + UUID.randomUUID());
+	}
+
+	/**
+	 * @return the cached input and output compression ratios for the key, or null when they were never measured
+	 */
+	public double[] getCachedRatios(String key) throws IOException {
+		Path entry = this.entryPath(key);
+		Properties properties = new Properties();
+		try (Reader reader = new InputStreamReader(fs.open(entry), StandardCharsets.UTF_8)) {
+			properties.load(reader);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+
+		// Entries are named after a hash of the key, so the key is checked as well.
+		String value = properties.getProperty(RATIOS);
+		if (!key.equals(properties.getProperty(KEY)) || value == null) {
+			return null;
+		}
+		String[] ratios = value.split(",");
+		return new double[]{Double.parseDouble(ratios[0]), Double.parseDouble(ratios[1])};
+	}
+
+	public void putCachedRatios(String key, double inputRatio, double outputRatio) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty(KEY, key);
+		properties.setProperty(RATIOS, inputRatio + "," + outputRatio);
+
+		Path entry = this.entryPath(key);
+		Path temporary = new Path(cachePath, "_" + entry.getName() + "-" + UUID.randomUUID());
+		try (FSDataOutputStream out = fs.create(temporary, false);
+			 Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+			properties.store(writer, "Measured compression ratios");
+		}
+
+		// HDFS does not rename over an existing file, so an entry measured again is replaced in two steps.
+		if (!fs.rename(temporary, entry)) {
+			fs.delete(entry, false);
+			if (!fs.rename(temporary, entry)) {
+				fs.delete(temporary, false);
+				throw new IOException("Failed to store the compression ratios in " + entry);
+			}
+		}
+	}
+
+	private Path entryPath(String key) throws IOException {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder();
+			for (byte b : digest) {
+				name.append(String.format("%02x", b));
+			}
+			return new Path(cachePath, name + ".properties");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Cannot name the cache entry of " + key, e);
+		}
+	}
+}
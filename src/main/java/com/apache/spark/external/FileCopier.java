@@ -0,0 +1,33 @@
+package com.apache.spark.external;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.SerializableWritable;
+import org.apache.spark.api.java.function.Function;
+
+import java.io.IOException;
+
+/**
+ * Copies the single input of a task byte for byte. Instances are shipped to the executors, which copy one file per
+ * task. Like the raw merge, every attempt copies to a path of its own and returns it for the driver to move into place.
+ */
+public class FileCopier implements Function<RawMerger.Task, String> {
+
+	private final SerializableWritable<Configuration> conf;
+
+	public FileCopier(Configuration conf) {
+		this.conf = new SerializableWritable<>(conf);
+	}
+
+	@Override
+	public String call(RawMerger.Task task) throws IOException {
+		Configuration conf = this.conf.value();
+		Path source = new Path(task.getInputs().get(0));
+		Path target = task.getAttemptOutput();
+		if (!FileUtil.copy(source.getFileSystem(conf), source, target.getFileSystem(conf), target, false, false, conf)) {
+			throw new IOException("Failed to copy " + source + " to " + target);
+		}
+		return target.toString();
+	}
+}
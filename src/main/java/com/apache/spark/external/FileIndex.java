@@ -0,0 +1,378 @@
+package com.apache.spark.external;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * In-memory index of every data file under the compaction input path.
+ *
+ * The input is listed recursively exactly once, one directory level at a time, with the directories of each level
+ * listed concurrently on a bounded thread pool. The size, codec and serialization of every file are captured during
+ * that single pass so that the size calculation, codec detection, planning and the Spark read can all be answered
+ * from memory instead of issuing further NameNode calls.
+ */
+public class FileIndex {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FileIndex.class);
+
+	private static final String[] IN_PROGRESS_SUFFIXES = {".tmp", "._COPYING_", ".inprogress"};
+
+	private final List<IndexedFile> files;
+	private final long scanTimeMillis;
+	private final Map<Path, Integer> leafDirectories;
+
+	public FileIndex(List<IndexedFile> files, long scanTimeMillis) {
+		this(files, scanTimeMillis, Collections.<Path, Integer>emptyMap());
+	}
+
+	/**
+	 * @param leafDirectories the number of files in every listed directory that has no sub directories
+	 */
+	public FileIndex(List<IndexedFile> files, long scanTimeMillis, Map<Path, Integer> leafDirectories) {
+		this.files = Collections.unmodifiableList(files);
+		this.scanTimeMillis = scanTimeMillis;
+		this.leafDirectories = Collections.unmodifiableMap(leafDirectories);
+	}
+
+	public static FileIndex scan(FileSystem fs, FileStatus[] roots, CompressionCodecFactory codecFactory,
+								 Map<String, String> serializationExtensions, int threads) throws IOException {
+		return scan(fs, roots, codecFactory, serializationExtensions, threads, null);
+	}
+
+	/**
+	 * Scans the input, reusing the listings kept in the cache for every directory that has not been modified since it
+	 * was last listed. A null cache lists every directory.
+	 */
+	public static FileIndex scan(FileSystem fs, FileStatus[] roots, CompressionCodecFactory codecFactory,
+								 Map<String, String> serializationExtensions, int threads, ListingCache cache) throws IOException {
+		long start = System.currentTimeMillis();
+		List<IndexedFile> files = new ArrayList<>();
+		List<Path> directories = new ArrayList<>();
+		Map<Path, Integer> leafDirectories = new HashMap<>();
+
+		if (roots != null) {
+			for (FileStatus root : roots) {
+				collect(root, codecFactory, serializationExtensions, files, directories);
+			}
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			while (!directories.isEmpty()) {
+				List<Future<FileStatus[]>> listings = new ArrayList<>();
+				for (final Path directory : directories) {
+					listings.add(pool.submit(() -> cache == null ? fs.listStatus(directory) : cache.list(fs, directory)));
+				}
+
+				List<Path> listed = directories;
+				directories = new ArrayList<>();
+				for (int i = 0; i < listed.size(); i++) {
+					int fileCount = 0;
+					boolean leaf = true;
+					for (FileStatus fileStatus : listings.get(i).get()) {
+						if (isHidden(fileStatus.getPath())) {
+							continue;
+						}
+						// Spark would still read an in-progress file of a directory passed as a whole.
+						if (isInProgress(fileStatus.getPath())) {
+							leaf = false;
+							continue;
+						}
+						if (fileStatus.isDirectory()) {
+							leaf = false;
+						} else {
+							fileCount++;
+						}
+						collect(fileStatus, codecFactory, serializationExtensions, files, directories);
+					}
+					if (leaf) {
+						leafDirectories.put(fs.makeQualified(listed.get(i)), fileCount);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while listing the input path", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Failed to list the input path", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+
+		FileIndex index = new FileIndex(files, System.currentTimeMillis() - start, leafDirectories);
+		LOGGER.info("Indexed " + files.size() + " input files (" + index.getTotalLength() + " bytes) in "
+				+ index.getScanTimeMillis() + " ms using " + threads + " listing threads");
+		return index;
+	}
+
+	// Only listed children are filtered on hidden names, so an input path such as /data/_landing is still indexed.
+	private static void collect(FileStatus fileStatus, CompressionCodecFactory codecFactory,
+								Map<String, String> serializationExtensions, List<IndexedFile> files, List<Path> directories) {
+		if (fileStatus.isDirectory()) {
+			directories.add(fileStatus.getPath());
+			return;
+		}
+
+		String name = fileStatus.getPath().toString();
+		String serialization = null;
+		String compressionName = name;
+		for (Entry<String, String> extension : serializationExtensions.entrySet()) {
+			if (name.endsWith(extension.getValue())) {
+				serialization = extension.getKey();
+				compressionName = name.substring(0, name.length() - extension.getValue().length());
+				break;
+			}
+		}
+
+		files.add(new IndexedFile(fileStatus, codecFactory.getCodec(new Path(compressionName)), serialization));
+	}
+
+	public static boolean isHidden(Path path) {
+		return path.getName().startsWith("_") || path.getName().startsWith(".");
+	}
+
+	/**
+	 * Whether the name marks a file that is still being written, such as the .tmp files of Flume, the ._COPYING_ files
+	 * of hadoop fs -put and the .inprogress files of Flink, which are renamed once complete.
+	 */
+	public static boolean isInProgress(Path path) {
+		for (String suffix : IN_PROGRESS_SUFFIXES) {
+			if (path.getName().endsWith(suffix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public List<IndexedFile> getFiles() {
+		return files;
+	}
+
+	public long getScanTimeMillis() {
+		return scanTimeMillis;
+	}
+
+	public long getTotalLength() {
+		long length = 0;
+		for (IndexedFile file : files) {
+			length += file.getLength();
+		}
+		return length;
+	}
+
+	public long getTotalSpaceConsumed() {
+		long spaceConsumed = 0;
+		for (IndexedFile file : files) {
+			spaceConsumed += file.getSpaceConsumed();
+		}
+		return spaceConsumed;
+	}
+
+	public List<String> getPaths() {
+		List<String> paths = new ArrayList<>(files.size());
+		for (IndexedFile file : files) {
+			paths.add(file.getPath().toString());
+		}
+		return paths;
+	}
+
+	/**
+	 * The paths to hand to Spark for reading every indexed file. A directory that has no sub directories and whose
+	 * files are all in the index is passed as a whole, so Spark checks and lists it once instead of checking every file
+	 * on its own; any other file is passed by its own path. Directories are never passed when they have sub
+	 * directories, as Spark would read those as well and infer partition columns from their names.
+	 */
+	public List<String> getReadPaths() {
+		Map<Path, List<String>> byDirectory = new LinkedHashMap<>();
+		for (IndexedFile file : files) {
+			byDirectory.computeIfAbsent(file.getPath().getParent(), directory -> new ArrayList<>()).add(file.getPath().toString());
+		}
+
+		List<String> paths = new ArrayList<>();
+		for (Entry<Path, List<String>> directory : byDirectory.entrySet()) {
+			Integer fileCount = leafDirectories.get(directory.getKey());
+			if (fileCount != null && fileCount == directory.getValue().size()) {
+				paths.add(directory.getKey().toString());
+			} else {
+				paths.addAll(directory.getValue());
+			}
+		}
+		return paths;
+	}
+
+	/**
+	 * The first codec detected in the index, or null when every file is uncompressed.
+	 */
+	public CompressionCodec getCodec() {
+		for (IndexedFile file : files) {
+			if (file.getCodec() != null) {
+				return file.getCodec();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The first serialization detected from a file extension, or null when no file carries a known extension.
+	 */
+	public String getSerialization() {
+		for (IndexedFile file : files) {
+			if (file.getSerialization() != null) {
+				return file.getSerialization();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Directory listings kept between scans of the same input. A kept listing is reused as long as the modification
+	 * time of its directory does not change, which costs one status call instead of listing every file again. Only
+	 * directories whose files were all last modified before the cacheable time and are all closed are kept: HDFS keeps
+	 * the creation time as the modification time of a file that is still being written, and closing the file changes
+	 * neither its own modification time nor that of its directory, so a kept listing would serve a stale length.
+	 */
+	public static class ListingCache {
+
+		private final Map<Path, Listing> listings = new ConcurrentHashMap<>();
+		private final Map<Path, Set<Path>> closedFiles = new ConcurrentHashMap<>();
+		private volatile long cacheableBefore = Long.MAX_VALUE;
+
+		public void setCacheableBefore(long cacheableBefore) {
+			this.cacheableBefore = cacheableBefore;
+		}
+
+		FileStatus[] list(FileSystem fs, Path directory) throws IOException {
+			long modificationTime;
+			try {
+				modificationTime = fs.getFileStatus(directory).getModificationTime();
+			} catch (FileNotFoundException e) {
+				listings.remove(directory);
+				closedFiles.remove(fs.makeQualified(directory));
+				return new FileStatus[0];
+			}
+
+			Listing cached = listings.get(directory);
+			if (cached != null && cached.modificationTime == modificationTime) {
+				return cached.children;
+			}
+
+			FileStatus[] children = fs.listStatus(directory);
+			Set<Path> knownClosed = closedFiles.getOrDefault(fs.makeQualified(directory), Collections.<Path>emptySet());
+			Set<Path> closed = new HashSet<>();
+			boolean settled = true;
+			for (FileStatus child : children) {
+				if (child.isDirectory()) {
+					continue;
+				}
+				if (child.getModificationTime() >= cacheableBefore) {
+					settled = false;
+				} else if (knownClosed.contains(child.getPath()) || isFileClosed(fs, child.getPath())) {
+					closed.add(child.getPath());
+				} else {
+					settled = false;
+				}
+			}
+			closedFiles.put(fs.makeQualified(directory), closed);
+
+			if (settled) {
+				listings.put(directory, new Listing(modificationTime, children));
+			} else {
+				listings.remove(directory);
+			}
+			return children;
+		}
+
+		/**
+		 * Whether the file is no longer open for write, answered from the last listing of its directory when it was
+		 * already found closed there.
+		 */
+		public boolean isClosed(FileSystem fs, Path file) throws IOException {
+			Set<Path> closed = closedFiles.get(file.getParent());
+			return (closed != null && closed.contains(file)) || isFileClosed(fs, file);
+		}
+
+		// Only HDFS keeps files visible while they are written, other filesystems only show a file once complete.
+		private static boolean isFileClosed(FileSystem fs, Path file) throws IOException {
+			return !(fs instanceof DistributedFileSystem) || ((DistributedFileSystem) fs).isFileClosed(file);
+		}
+
+		private static class Listing {
+
+			private final long modificationTime;
+			private final FileStatus[] children;
+
+			private Listing(long modificationTime, FileStatus[] children) {
+				this.modificationTime = modificationTime;
+				this.children = children;
+			}
+		}
+	}
+
+	public static class IndexedFile {
+
+		private final FileStatus status;
+		private final CompressionCodec codec;
+		private final String serialization;
+
+		public IndexedFile(FileStatus status, CompressionCodec codec, String serialization) {
+			this.status = status;
+			this.codec = codec;
+			this.serialization = serialization;
+		}
+
+		public FileStatus getStatus() {
+			return status;
+		}
+
+		public Path getPath() {
+			return status.getPath();
+		}
+
+		public long getLength() {
+			return status.getLen();
+		}
+
+		public long getModificationTime() {
+			return status.getModificationTime();
+		}
+
+		// Matches ContentSummary#getSpaceConsumed, which accounts for every replica of the file.
+		public long getSpaceConsumed() {
+			return status.getLen() * Math.max(1, status.getReplication());
+		}
+
+		public CompressionCodec getCodec() {
+			return codec;
+		}
+
+		public String getSerialization() {
+			return serialization;
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package com.apache.spark.external;
+
+import com.apache.spark.external.FileIndex.IndexedFile;
+import com.typesafe.config.Config;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.sql.SparkSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps one SparkSession open and compacts the files that keep arriving in the input path.
+ *
+ * Every poll considers the files that are not yet in the manifest of compacted files, and leaves alone the files that
+ * are still open for write, carry an in-progress suffix, or were modified within the last min_file_age_in_seconds.
+ * Once the pending files reach min_batch_size_in_mb, or the oldest of them has waited max_batch_age_in_minutes, they
+ * are compacted into a hidden staging directory together with a _manifest of their paths and lengths, and the staging
+ * directory is then renamed to batch-&lt;commit time&gt; under the output path. The single rename commits the batch and
+ * its manifest atomically, so readers never see a partial batch, and on restart the compacted files are recovered
+ * from the manifests of the committed batches. Staging directories left behind by a failed poll are committed when
+ * their manifest was written and deleted otherwise.
+ */
+public class IncrementalCompaction {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(IncrementalCompaction.class);
+
+	private static final String BATCH_PREFIX = "batch-";
+	private static final String STAGING_PREFIX = "_incoming-";
+	private static final String MANIFEST_FILE = "_manifest";
+	private static final String MIN_BATCH_SIZE = "compaction.incremental.min_batch_size_in_mb";
+	private static final String MAX_BATCH_AGE = "compaction.incremental.max_batch_age_in_minutes";
+	private static final String MIN_FILE_AGE = "compaction.incremental.min_file_age_in_seconds";
+	private static final int DEFAULT_MIN_BATCH_SIZE_IN_MB = 128;
+	private static final int DEFAULT_MAX_BATCH_AGE_IN_MINUTES = 60;
+	private static final int DEFAULT_MIN_FILE_AGE_IN_SECONDS = 60;
+
+	private final String inputPath;
+	private final Path outputPath;
+	private final long pollIntervalMillis;
+	private final String[] args;
+	private final long minBatchSize;
+	private final long maxBatchAgeMillis;
+	private final long minFileAgeMillis;
+	private final FileIndex.ListingCache listingCache = new FileIndex.ListingCache();
+	private final Map<String, Long> compacted = new HashMap<>();
+
+	public IncrementalCompaction(String inputPath, String outputPath, long pollIntervalMillis, Config config, String[] args) {
+		this.inputPath = inputPath;
+		this.outputPath = new Path(outputPath);
+		this.pollIntervalMillis = pollIntervalMillis;
+		this.args = args;
+		this.minBatchSize = (config.hasPath(MIN_BATCH_SIZE) ? config.getInt(MIN_BATCH_SIZE) : DEFAULT_MIN_BATCH_SIZE_IN_MB) * 1024L * 1024L;
+		this.maxBatchAgeMillis = (config.hasPath(MAX_BATCH_AGE) ? config.getInt(MAX_BATCH_AGE) : DEFAULT_MAX_BATCH_AGE_IN_MINUTES) * 60L * 1000L;
+		this.minFileAgeMillis = (config.hasPath(MIN_FILE_AGE) ? config.getInt(MIN_FILE_AGE) : DEFAULT_MIN_FILE_AGE_IN_SECONDS) * 1000L;
+	}
+
+	/**
+	 * Polls the input path until the thread is interrupted. A failed batch is logged and retried on the next poll, as
+	 * its files are only added to the compacted files once the batch has been committed.
+	 */
+	public void run(SparkSession spark) throws IOException {
+		FileSystem outputFs = outputPath.getFileSystem(spark.sparkContext().hadoopConfiguration());
+		this.loadManifests(outputFs);
+		LOGGER.info("Watching " + inputPath + " every " + pollIntervalMillis + " ms, " + compacted.size()
+				+ " files already compacted");
+
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				this.poll(spark, outputFs);
+			} catch (IOException | RuntimeException e) {
+				LOGGER.error("Incremental compaction of " + inputPath + " failed, retrying on the next poll", e);
+			}
+
+			try {
+				Thread.sleep(pollIntervalMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	void poll(SparkSession spark, FileSystem outputFs) throws IOException {
+		this.recoverStaging(outputFs);
+
+		long now = System.currentTimeMillis();
+		long settledBefore = now - minFileAgeMillis;
+		listingCache.setCacheableBefore(settledBefore);
+		FileIndex index = new Compaction().scanInput(inputPath, listingCache);
+		FileSystem inputFs = new Path(inputPath).getFileSystem(spark.sparkContext().hadoopConfiguration());
+
+		List<IndexedFile> pending = new ArrayList<>();
+		Set<String> listed = new HashSet<>();
+		long pendingSize = 0;
+		long oldest = Long.MAX_VALUE;
+		for (IndexedFile file : index.getFiles()) {
+			String path = file.getPath().toString();
+			listed.add(path);
+			Long compactedLength = compacted.get(path);
+			if (compactedLength != null) {
+				if (compactedLength != file.getLength()) {
+					LOGGER.warn(path + " changed from " + compactedLength + " to " + file.getLength()
+							+ " bytes after it was compacted and is not compacted again");
+					compacted.put(path, file.getLength());
+				}
+				continue;
+			}
+			if (file.getModificationTime() >= settledBefore || !listingCache.isClosed(inputFs, file.getPath())) {
+				continue;
+			}
+			pending.add(file);
+			pendingSize += file.getLength();
+			oldest = Math.min(oldest, file.getModificationTime());
+		}
+		// Files removed from the input, e.g. by retention, are not listed again and no longer need to be remembered.
+		compacted.keySet().retainAll(listed);
+
+		if (pending.isEmpty() || (pendingSize < minBatchSize && now - oldest < maxBatchAgeMillis)) {
+			LOGGER.info("Waiting for more input: " + pending.size() + " files (" + pendingSize + " bytes) pending");
+			return;
+		}
+
+		Path staging = new Path(outputPath, STAGING_PREFIX + BATCH_PREFIX + now);
+		Path batch = new Path(outputPath, BATCH_PREFIX + now);
+
+		LOGGER.info("Compacting " + pending.size() + " files (" + pendingSize + " bytes) into " + batch);
+		Compaction compaction = new Compaction();
+		compaction.setFileIndex(new FileIndex(pending, index.getScanTimeMillis()));
+		compaction.setBatch(outputPath.toString(), batch.toString(), now);
+		compaction.compact(spark, args, staging.toString());
+		this.writeManifest(outputFs, new Path(staging, MANIFEST_FILE), pending);
+
+		if (!outputFs.rename(staging, batch)) {
+			throw new IOException("Failed to commit " + staging + " as " + batch);
+		}
+		for (IndexedFile file : pending) {
+			compacted.put(file.getPath().toString(), file.getLength());
+		}
+		LOGGER.info("Committed " + batch);
+	}
+
+	private void writeManifest(FileSystem outputFs, Path manifest, List<IndexedFile> files) throws IOException {
+		try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(outputFs.create(manifest, false), StandardCharsets.UTF_8))) {
+			for (IndexedFile file : files) {
+				writer.write(file.getLength() + "\t" + file.getPath());
+				writer.newLine();
+			}
+		}
+	}
+
+	/**
+	 * Clears up after a poll that failed. A staging directory with a manifest holds a complete batch whose rename did
+	 * not happen and is committed now; any other staging directory holds a partial batch and is deleted.
+	 */
+	void recoverStaging(FileSystem outputFs) throws IOException {
+		if (!outputFs.exists(outputPath)) {
+			return;
+		}
+
+		for (FileStatus fileStatus : outputFs.listStatus(outputPath)) {
+			String name = fileStatus.getPath().getName();
+			if (!fileStatus.isDirectory() || !name.startsWith(STAGING_PREFIX)) {
+				continue;
+			}
+
+			if (!outputFs.exists(new Path(fileStatus.getPath(), MANIFEST_FILE))) {
+				LOGGER.info("Deleting the partial batch " + fileStatus.getPath());
+				outputFs.delete(fileStatus.getPath(), true);
+				continue;
+			}
+
+			Path batch = new Path(outputPath, name.substring(STAGING_PREFIX.length()));
+			if (!outputFs.rename(fileStatus.getPath(), batch)) {
+				throw new IOException("Failed to commit " + fileStatus.getPath() + " as " + batch);
+			}
+			this.readManifest(outputFs, new Path(batch, MANIFEST_FILE));
+			LOGGER.info("Committed " + batch + " left behind by a failed poll");
+		}
+	}
+
+	void loadManifests(FileSystem outputFs) throws IOException {
+		compacted.clear();
+		if (!outputFs.exists(outputPath)) {
+			return;
+		}
+
+		for (FileStatus fileStatus : outputFs.listStatus(outputPath)) {
+			Path manifest = new Path(fileStatus.getPath(), MANIFEST_FILE);
+			if (fileStatus.isDirectory() && fileStatus.getPath().getName().startsWith(BATCH_PREFIX) && outputFs.exists(manifest)) {
+				this.readManifest(outputFs, manifest);
+			}
+		}
+	}
+
+	private void readManifest(FileSystem outputFs, Path manifest) throws IOException {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(outputFs.open(manifest), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int separator = line.indexOf('\t');
+				compacted.put(line.substring(separator + 1), Long.parseLong(line.substring(0, separator)));
+			}
+		}
+	}
+
+	// The length every compacted file had when it was compacted, by path.
+	Map<String, Long> getCompacted() {
+		return Collections.unmodifiableMap(compacted);
+	}
+}
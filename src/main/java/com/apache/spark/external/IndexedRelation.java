@@ -0,0 +1,99 @@
+package com.apache.spark.external;
+
+import com.apache.spark.external.FileIndex.IndexedFile;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.catalyst.catalog.BucketSpec;
+import org.apache.spark.sql.execution.datasources.DataSource;
+import org.apache.spark.sql.execution.datasources.FileFormat;
+import org.apache.spark.sql.execution.datasources.FileStatusCache;
+import org.apache.spark.sql.execution.datasources.HadoopFsRelation;
+import org.apache.spark.sql.execution.datasources.InMemoryFileIndex;
+import org.apache.spark.sql.types.StructType;
+import scala.Option;
+import scala.collection.JavaConverters;
+import scala.collection.immutable.HashMap;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads files that are already in the FileIndex without handing their paths back to Spark.
+ *
+ * spark.read() checks that every path it is given exists and lists every path again on the driver, and starts a
+ * listing job for more than 32 paths. Here the relation is built directly on an InMemoryFileIndex whose listings are
+ * answered from the indexed file statuses, so setting up the read issues no NameNode call at all.
+ */
+class IndexedRelation {
+
+	private IndexedRelation() {
+	}
+
+	/**
+	 * @param provider the data source name, as given to DataFrameReader#format
+	 * @param schema   the schema to read the files with, or null to infer it from the files
+	 */
+	static Dataset<Row> read(SparkSession spark, String provider, StructType schema, List<IndexedFile> files) {
+		List<Path> paths = new ArrayList<>(files.size());
+		List<FileStatus> statuses = new ArrayList<>(files.size());
+		for (IndexedFile file : files) {
+			paths.add(file.getPath());
+			statuses.add(file.getStatus());
+		}
+
+		FileFormat format;
+		try {
+			format = (FileFormat) DataSource.lookupDataSource(provider, spark.sessionState().conf()).newInstance();
+		} catch (InstantiationException | IllegalAccessException | ClassCastException e) {
+			throw new IllegalArgumentException("Not a file based data source: " + provider, e);
+		}
+
+		HashMap<String, String> options = new HashMap<>();
+		StructType dataSchema = schema;
+		if (dataSchema == null) {
+			Option<StructType> inferred = format.inferSchema(spark, options, JavaConverters.asScalaBufferConverter(statuses).asScala());
+			if (inferred.isEmpty()) {
+				throw new IllegalArgumentException("Unable to infer the schema of " + paths.get(0));
+			}
+			dataSchema = inferred.get();
+		}
+
+		InMemoryFileIndex location = new InMemoryFileIndex(spark, JavaConverters.asScalaBufferConverter(paths).asScala(),
+				options, Option.<StructType>empty(), new IndexedStatusCache(statuses));
+		HadoopFsRelation relation = new HadoopFsRelation(location, location.partitionSchema(), dataSchema,
+				Option.<BucketSpec>empty(), format, options, spark);
+		return spark.baseRelationToDataFrame(relation);
+	}
+
+	// Every indexed file is its own root path, so its listing is the file itself.
+	private static class IndexedStatusCache extends FileStatusCache {
+
+		private final Map<Path, FileStatus[]> leafFiles = new LinkedHashMap<>();
+
+		private IndexedStatusCache(List<FileStatus> statuses) {
+			for (FileStatus status : statuses) {
+				leafFiles.put(status.getPath(), new FileStatus[]{status});
+			}
+		}
+
+		@Override
+		public Option<FileStatus[]> getLeafFiles(Path path) {
+			return Option.apply(leafFiles.get(path));
+		}
+
+		@Override
+		public void putLeafFiles(Path path, FileStatus[] files) {
+			leafFiles.put(path, files);
+		}
+
+		@Override
+		public void invalidateAll() {
+			leafFiles.clear();
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package com.apache.spark.external;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.parquet.format.converter.ParquetMetadataConverter;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.ParquetFileWriter;
+import org.apache.parquet.hadoop.ParquetOutputFormat;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.metadata.BlockMetaData;
+import org.apache.parquet.hadoop.metadata.ColumnChunkMetaData;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.hadoop.metadata.ParquetMetadata;
+import org.apache.parquet.schema.MessageType;
+import org.apache.spark.SerializableWritable;
+import org.apache.spark.TaskContext;
+import org.apache.spark.api.java.function.Function;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merges a group of input files into a single output file without decoding any records.
+ *
+ * For Parquet the column chunks of every row group are copied as raw bytes and only the footer is rewritten, so the
+ * row groups of the inputs are kept as they are. A group whose row groups are on average smaller than a quarter of
+ * parquet.block.size is therefore left to the rewrite, which would otherwise leave files made of many small row groups
+ * that are slow to scan. For Avro the compressed data blocks of every container file are
+ * appended as they are behind a single header. For gzip and bzip2 text the compressed files are concatenated, as both
+ * formats decode a sequence of concatenated streams as one stream. Every file but the last is decompressed first to
+ * check that it ends with a line terminator, as the last line of a file would otherwise be joined to the first line of
+ * the next one.
+ *
+ * A group is merged only when every file shares the schema of the first file and is already written with the output
+ * codec; otherwise nothing is kept and null is returned so that the caller can rewrite the group through Spark.
+ *
+ * Instances are shipped to the executors, which merge one group per task. Every task attempt writes to a path of its
+ * own next to the task output and returns it, so a speculative or retried attempt never replaces a file another attempt
+ * has finished; the driver only moves the returned file into place.
+ */
+public class RawMerger implements Function<RawMerger.Task, String> {
+
+	private static final String AVRO = "avro";
+	private static final String PARQUET = "parquet";
+	private static final String TEXT = "text";
+	private static final double MIN_ROW_GROUP_FRACTION = 0.25;
+
+	private final SerializableWritable<Configuration> conf;
+	private final String serialization;
+	private final String codec;
+
+	public RawMerger(Configuration conf, String serialization, String codec) {
+		this.conf = new SerializableWritable<>(conf);
+		this.serialization = serialization;
+		this.codec = codec;
+	}
+
+	/**
+	 * @return the file the group was merged into, or null when the group has to be rewritten
+	 */
+	@Override
+	public String call(Task task) throws IOException {
+		Configuration conf = this.conf.value();
+		Path output = task.getAttemptOutput();
+		FileSystem fs = output.getFileSystem(conf);
+
+		boolean merged;
+		switch (serialization) {
+			case PARQUET:
+				merged = this.mergeParquet(conf, fs, task.getInputs(), output);
+				break;
+			case AVRO:
+				merged = this.mergeAvro(fs, task.getInputs(), output);
+				break;
+			case TEXT:
+				merged = this.concatenate(conf, fs, task.getInputs(), output);
+				break;
+			default:
+				merged = false;
+		}
+		return merged ? output.toString() : null;
+	}
+
+	private boolean mergeParquet(Configuration conf, FileSystem fs, List<String> paths, Path output) throws IOException {
+		CompressionCodecName expectedCodec = CompressionCodecName.fromConf(codec);
+
+		List<Path> inputs = new ArrayList<>();
+		List<ParquetMetadata> footers = new ArrayList<>();
+		long rowGroupBytes = 0;
+		int rowGroups = 0;
+		for (String input : paths) {
+			Path path = new Path(input);
+			ParquetMetadata footer = ParquetFileReader.readFooter(conf, path, ParquetMetadataConverter.NO_FILTER);
+			if (!footers.isEmpty() && !footer.getFileMetaData().getSchema().equals(footers.get(0).getFileMetaData().getSchema())) {
+				return false;
+			}
+			for (BlockMetaData block : footer.getBlocks()) {
+				rowGroupBytes += block.getTotalByteSize();
+				rowGroups++;
+				for (ColumnChunkMetaData column : block.getColumns()) {
+					if (column.getCodec() != expectedCodec) {
+						return false;
+					}
+				}
+			}
+			inputs.add(path);
+			footers.add(footer);
+		}
+
+		long minRowGroupSize = (long) (conf.getLong(ParquetOutputFormat.BLOCK_SIZE, ParquetWriter.DEFAULT_BLOCK_SIZE) * MIN_ROW_GROUP_FRACTION);
+		if (rowGroups > 0 && rowGroupBytes / rowGroups < minRowGroupSize) {
+			return false;
+		}
+
+		MessageType schema = footers.get(0).getFileMetaData().getSchema();
+		ParquetFileWriter writer = new ParquetFileWriter(conf, schema, output, ParquetFileWriter.Mode.CREATE);
+		writer.start();
+		for (int i = 0; i < inputs.size(); i++) {
+			try (FSDataInputStream in = fs.open(inputs.get(i))) {
+				writer.appendRowGroups(in, footers.get(i).getBlocks(), false);
+			}
+		}
+		writer.end(footers.get(0).getFileMetaData().getKeyValueMetaData());
+		return true;
+	}
+
+	private boolean mergeAvro(FileSystem fs, List<String> paths, Path output) throws IOException {
+		DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>());
+		Schema schema = null;
+		boolean merged = false;
+
+		try {
+			for (String input : paths) {
+				try (DataFileStream<GenericRecord> in = new DataFileStream<>(fs.open(new Path(input)), new GenericDatumReader<GenericRecord>())) {
+					String fileCodec = in.getMetaString(DataFileConstants.CODEC);
+					if (!codec.equals(fileCodec == null ? DataFileConstants.NULL_CODEC : fileCodec)) {
+						return false;
+					}
+
+					if (schema == null) {
+						schema = in.getSchema();
+						writer.setCodec(CodecFactory.fromString(codec));
+						writer.create(schema, fs.create(output, false));
+					} else if (!schema.equals(in.getSchema())) {
+						return false;
+					}
+
+					// Blocks are copied still compressed since the codec of the input matches the output.
+					writer.appendAllFrom(in, false);
+				}
+			}
+			merged = true;
+		} finally {
+			writer.close();
+			if (!merged) {
+				fs.delete(output, false);
+			}
+		}
+		return true;
+	}
+
+	private boolean concatenate(Configuration conf, FileSystem fs, List<String> paths, Path output) throws IOException {
+		CompressionCodecFactory codecFactory = new CompressionCodecFactory(conf);
+		CompressionCodec expectedCodec = codecFactory.getCodecByName(codec);
+		for (String input : paths) {
+			CompressionCodec fileCodec = codecFactory.getCodec(new Path(input));
+			if (expectedCodec == null || fileCodec == null || !expectedCodec.getClass().equals(fileCodec.getClass())) {
+				return false;
+			}
+		}
+
+		for (int i = 0; i < paths.size() - 1; i++) {
+			if (!endsWithLineTerminator(fs, expectedCodec, new Path(paths.get(i)))) {
+				return false;
+			}
+		}
+
+		try (FSDataOutputStream out = fs.create(output, false)) {
+			for (String input : paths) {
+				try (FSDataInputStream in = fs.open(new Path(input))) {
+					IOUtils.copyBytes(in, out, conf, false);
+				}
+			}
+		}
+		return true;
+	}
+
+	private static boolean endsWithLineTerminator(FileSystem fs, CompressionCodec codec, Path path) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		byte last = '\n';
+		try (InputStream in = codec.createInputStream(fs.open(path))) {
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				if (read > 0) {
+					last = buffer[read - 1];
+				}
+			}
+		}
+		return last == '\n';
+	}
+
+	public static class Task implements Serializable {
+
+		private final ArrayList<String> inputs;
+		private final String output;
+
+		public Task(List<String> inputs, String output) {
+			this.inputs = new ArrayList<>(inputs);
+			this.output = output;
+		}
+
+		public List<String> getInputs() {
+			return inputs;
+		}
+
+		public String getOutput() {
+			return output;
+		}
+
+		/**
+		 * The path the running task attempt writes to instead of the output, named after the attempt id, which is unique
+		 * across the application. Outside of a Spark task this is the output itself.
+		 */
+		public Path getAttemptOutput() {
+			Path path = new Path(output);
+			TaskContext context = TaskContext.get();
+			return context == null ? path : new Path(path.getParent(), "_attempt-" + context.taskAttemptId() + "-" + path.getName());
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package com.apache.spark.external;
+
+import com.apache.spark.external.FileIndex.IndexedFile;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompactionPlannerTest {
+
+	private static final long BLOCK_SIZE = 128L * 1024 * 1024;
+
+	private static List<IndexedFile> files(long... lengths) {
+		List<IndexedFile> files = new ArrayList<>();
+		for (int i = 0; i < lengths.length; i++) {
+			files.add(new IndexedFile(new FileStatus(lengths[i], false, 1, BLOCK_SIZE, 0, new Path("/input/part-" + i)), null, null));
+		}
+		return files;
+	}
+
+	private static long estimatedSize(List<IndexedFile> group, double sizeFactor) {
+		long size = 0;
+		for (IndexedFile file : group) {
+			size += CompactionPlanner.estimate(file, sizeFactor);
+		}
+		return size;
+	}
+
+	private static List<Long> lengths(List<IndexedFile> files) {
+		List<Long> lengths = new ArrayList<>();
+		for (IndexedFile file : files) {
+			lengths.add(file.getLength());
+		}
+		Collections.sort(lengths);
+		return lengths;
+	}
+
+	// Every input file ends up in exactly one group or in the skipped files.
+	private static void assertCoversInput(List<IndexedFile> input, CompactionPlanner.Plan plan) {
+		Set<Path> planned = new HashSet<>();
+		int count = plan.getSkipped().size();
+		for (IndexedFile file : plan.getSkipped()) {
+			planned.add(file.getPath());
+		}
+		for (List<IndexedFile> group : plan.getGroups()) {
+			count += group.size();
+			for (IndexedFile file : group) {
+				planned.add(file.getPath());
+			}
+		}
+		assertEquals(input.size(), count);
+		assertEquals(input.size(), planned.size());
+	}
+
+	@Test
+	public void emptyInputHasNoGroups() {
+		CompactionPlanner.Plan binPacked = CompactionPlanner.binPack(files(), 1.0, 100, 80);
+		assertTrue(binPacked.getGroups().isEmpty());
+		assertTrue(binPacked.getSkipped().isEmpty());
+
+		CompactionPlanner.Plan balanced = CompactionPlanner.balance(files(), 4, 1.0);
+		assertTrue(balanced.getGroups().isEmpty());
+		assertTrue(balanced.getSkipped().isEmpty());
+	}
+
+	@Test
+	public void filesAtOrAboveSkipThresholdAreSkipped() {
+		// lengths, size factor, target size, skip threshold, expected skipped lengths
+		Object[][] cases = {
+				{new long[]{10, 79, 80, 100}, 1.0, 100L, 80L, new long[]{80, 100}},
+				{new long[]{10, 79, 80, 100}, 1.0, 100L, 100L, new long[]{100}},
+				{new long[]{150, 160, 170}, 0.5, 100L, 80L, new long[]{160, 170}},
+				{new long[]{1, 2, 3}, 1.0, 100L, 80L, new long[]{}},
+				{new long[]{500, 600}, 1.0, 100L, 80L, new long[]{500, 600}},
+		};
+
+		for (Object[] testCase : cases) {
+			List<IndexedFile> input = files((long[]) testCase[0]);
+			CompactionPlanner.Plan plan = CompactionPlanner.binPack(input, (Double) testCase[1], (Long) testCase[2], (Long) testCase[3]);
+
+			List<Long> expected = new ArrayList<>();
+			for (long length : (long[]) testCase[4]) {
+				expected.add(length);
+			}
+			assertEquals(expected, lengths(plan.getSkipped()));
+			assertCoversInput(input, plan);
+		}
+	}
+
+	@Test
+	public void noGroupExceedsTargetSize() {
+		// size factor, target size, skip threshold
+		Object[][] cases = {
+				{1.0, 1000L, 800L},
+				{0.5, 1000L, 800L},
+				{2.0, 1000L, 1000L},
+		};
+
+		Random random = new Random(42);
+		long[] lengths = new long[500];
+		for (int i = 0; i < lengths.length; i++) {
+			lengths[i] = 1 + random.nextInt(600);
+		}
+		List<IndexedFile> input = files(lengths);
+
+		for (Object[] testCase : cases) {
+			double sizeFactor = (Double) testCase[0];
+			long targetSize = (Long) testCase[1];
+			CompactionPlanner.Plan plan = CompactionPlanner.binPack(input, sizeFactor, targetSize, (Long) testCase[2]);
+
+			for (List<IndexedFile> group : plan.getGroups()) {
+				assertTrue(estimatedSize(group, sizeFactor) <= targetSize);
+			}
+			assertCoversInput(input, plan);
+		}
+	}
+
+	@Test
+	public void fileLargerThanTargetBelowSkipThresholdIsGroupedAlone() {
+		List<IndexedFile> input = files(150, 10, 20, 30);
+		CompactionPlanner.Plan plan = CompactionPlanner.binPack(input, 1.0, 100, Long.MAX_VALUE);
+
+		assertTrue(plan.getSkipped().isEmpty());
+		assertEquals(2, plan.getGroups().size());
+		assertEquals(Collections.singletonList(150L), lengths(plan.getGroups().get(0)));
+		assertEquals(60, estimatedSize(plan.getGroups().get(1), 1.0));
+		assertCoversInput(input, plan);
+	}
+
+	@Test
+	public void balanceSpreadsFilesEvenly() {
+		// lengths, group count, expected group count
+		Object[][] cases = {
+				{new long[]{10, 10, 10, 10}, 2, 2},
+				{new long[]{10, 10}, 5, 2},
+				{new long[]{100, 60, 50, 40, 30, 20}, 3, 3},
+				{new long[]{7}, 0, 1},
+		};
+
+		for (Object[] testCase : cases) {
+			long[] lengths = (long[]) testCase[0];
+			List<IndexedFile> input = files(lengths);
+			CompactionPlanner.Plan plan = CompactionPlanner.balance(input, (Integer) testCase[1], 1.0);
+
+			assertEquals(testCase[2], plan.getGroups().size());
+			assertTrue(plan.getSkipped().isEmpty());
+			assertCoversInput(input, plan);
+
+			long largest = 0;
+			for (long length : lengths) {
+				largest = Math.max(largest, length);
+			}
+			long smallestGroup = Long.MAX_VALUE;
+			long largestGroup = 0;
+			for (List<IndexedFile> group : plan.getGroups()) {
+				smallestGroup = Math.min(smallestGroup, estimatedSize(group, 1.0));
+				largestGroup = Math.max(largestGroup, estimatedSize(group, 1.0));
+			}
+			assertTrue(largestGroup - smallestGroup <= largest);
+		}
+	}
+}
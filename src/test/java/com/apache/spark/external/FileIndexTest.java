@@ -0,0 +1,172 @@
+package com.apache.spark.external;
+
+import com.apache.spark.external.FileIndex.IndexedFile;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FileIndexTest {
+
+	private static final Map<String, String> SERIALIZATION_EXTENSIONS = Collections.singletonMap("text", ".txt");
+	// Whole seconds, as some file systems keep no more precision than that.
+	private static final long DIRECTORY_TIME = 1500000000000L;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Configuration conf;
+	private FileSystem fs;
+	private Path root;
+
+	@Before
+	public void setUp() throws IOException {
+		conf = new Configuration();
+		fs = FileSystem.getLocal(conf);
+		root = fs.makeQualified(new Path(folder.getRoot().getPath()));
+	}
+
+	private Path touch(String name) throws IOException {
+		Path path = new Path(root, name);
+		try (FSDataOutputStream out = fs.create(path, false)) {
+			out.write(name.getBytes(StandardCharsets.UTF_8));
+		}
+		return path;
+	}
+
+	private FileIndex scan(String input) throws IOException {
+		return this.scan(input, null);
+	}
+
+	private FileIndex scan(String input, FileIndex.ListingCache cache) throws IOException {
+		return FileIndex.scan(fs, fs.globStatus(new Path(root, input)), new CompressionCodecFactory(conf), SERIALIZATION_EXTENSIONS, 2, cache);
+	}
+
+	private List<String> paths(String... names) {
+		List<String> paths = new ArrayList<>();
+		for (String name : names) {
+			paths.add(new Path(root, name).toString());
+		}
+		Collections.sort(paths);
+		return paths;
+	}
+
+	private static List<String> sorted(List<String> paths) {
+		List<String> sorted = new ArrayList<>(paths);
+		Collections.sort(sorted);
+		return sorted;
+	}
+
+	@Test
+	public void hiddenInputPathIsIndexed() throws IOException {
+		touch("_landing/a.txt");
+		touch("_landing/.b.txt");
+		touch("_landing/_SUCCESS");
+		touch("_landing/_temporary/c.txt");
+		touch("_landing/day=1/d.txt");
+
+		// Hidden names are only filtered among the listed children, which also skips the .crc files of the local fs.
+		assertEquals(paths("_landing/a.txt", "_landing/day=1/d.txt"), sorted(scan("_landing").getPaths()));
+		assertEquals(paths("_landing/day=1/d.txt"), sorted(scan("_landing/day=1").getPaths()));
+	}
+
+	@Test
+	public void readPathsUseFullyIndexedLeafDirectories() throws IOException {
+		touch("input/a.txt");
+		touch("input/leaf/b.txt");
+		touch("input/leaf/c.txt");
+		touch("input/parent/d.txt");
+		touch("input/parent/child/e.txt");
+
+		FileIndex index = scan("input");
+		assertEquals(paths("input/a.txt", "input/leaf/b.txt", "input/leaf/c.txt", "input/parent/child/e.txt",
+				"input/parent/d.txt"), sorted(index.getPaths()));
+		// input and input/parent have sub directories, so only their files are passed.
+		assertEquals(paths("input/a.txt", "input/leaf", "input/parent/child", "input/parent/d.txt"),
+				sorted(index.getReadPaths()));
+	}
+
+	@Test
+	public void readPathsOfPartiallyIndexedDirectoryAreFiles() throws IOException {
+		List<IndexedFile> files = new ArrayList<>();
+		for (String name : new String[]{"leaf/a.txt", "leaf/b.txt", "leaf/c.txt"}) {
+			files.add(new IndexedFile(fs.getFileStatus(touch(name)), null, "text"));
+		}
+		Map<Path, Integer> leafDirectories = Collections.singletonMap(new Path(root, "leaf"), 3);
+
+		assertEquals(paths("leaf"), sorted(new FileIndex(files, 0, leafDirectories).getReadPaths()));
+		// A directory with files outside of the index, e.g. already compacted ones, is never passed as a whole.
+		assertEquals(paths("leaf/a.txt", "leaf/c.txt"),
+				sorted(new FileIndex(Arrays.asList(files.get(0), files.get(2)), 0, leafDirectories).getReadPaths()));
+		assertEquals(paths("leaf/a.txt", "leaf/b.txt", "leaf/c.txt"), sorted(new FileIndex(files, 0).getReadPaths()));
+	}
+
+	@Test
+	public void inProgressFilesAreSkipped() throws IOException {
+		touch("input/a.txt");
+		touch("input/b.txt.tmp");
+		touch("input/c.txt._COPYING_");
+		touch("input/d.txt.inprogress");
+		touch("done/e.txt");
+
+		FileIndex index = scan("{input,done}");
+		assertEquals(paths("done/e.txt", "input/a.txt"), sorted(index.getPaths()));
+		// Spark would also read the in-progress files of a directory passed as a whole.
+		assertEquals(paths("done", "input/a.txt"), sorted(index.getReadPaths()));
+
+		assertTrue(FileIndex.isInProgress(new Path("/input/b.txt.tmp")));
+		assertFalse(FileIndex.isInProgress(new Path("/input/b.tmp.txt")));
+	}
+
+	@Test
+	public void listingCacheReusesUnmodifiedDirectories() throws IOException {
+		Path input = new Path(root, "input");
+		touch("input/a.txt");
+		fs.setTimes(input, DIRECTORY_TIME, -1);
+		FileIndex.ListingCache cache = new FileIndex.ListingCache();
+		assertEquals(paths("input/a.txt"), sorted(scan("input", cache).getPaths()));
+
+		// A file added while the directory keeps its modification time is not seen, as the kept listing is reused.
+		touch("input/b.txt");
+		fs.setTimes(input, DIRECTORY_TIME, -1);
+		assertEquals(paths("input/a.txt"), sorted(scan("input", cache).getPaths()));
+
+		fs.setTimes(input, DIRECTORY_TIME + 1000, -1);
+		assertEquals(paths("input/a.txt", "input/b.txt"), sorted(scan("input", cache).getPaths()));
+
+		fs.delete(input, true);
+		assertEquals(0, cache.list(fs, input).length);
+	}
+
+	@Test
+	public void listingCacheKeepsOnlySettledListings() throws IOException {
+		Path input = new Path(root, "input");
+		Path first = touch("input/a.txt");
+		fs.setTimes(input, DIRECTORY_TIME, -1);
+		FileIndex.ListingCache cache = new FileIndex.ListingCache();
+		// a.txt was modified too recently for its length to be trusted, so the listing is not kept.
+		cache.setCacheableBefore(fs.getFileStatus(first).getModificationTime());
+		assertEquals(paths("input/a.txt"), sorted(scan("input", cache).getPaths()));
+
+		touch("input/b.txt");
+		fs.setTimes(input, DIRECTORY_TIME, -1);
+		assertEquals(paths("input/a.txt", "input/b.txt"), sorted(scan("input", cache).getPaths()));
+	}
+}
@@ -0,0 +1,91 @@
+package com.apache.spark.external;
+
+import com.typesafe.config.ConfigFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IncrementalCompactionTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileSystem fs;
+	private Path output;
+	private IncrementalCompaction compaction;
+
+	@Before
+	public void setUp() throws IOException {
+		fs = FileSystem.getLocal(new Configuration());
+		Path root = fs.makeQualified(new Path(folder.getRoot().getPath()));
+		output = new Path(root, "output");
+		compaction = new IncrementalCompaction(new Path(root, "input").toString(), output.toString(), 1000,
+				ConfigFactory.empty(), new String[0]);
+	}
+
+	private void write(String name, String content) throws IOException {
+		try (FSDataOutputStream out = fs.create(new Path(output, name), false)) {
+			out.write(content.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private static Map<String, Long> compacted(Object... pathsAndLengths) {
+		Map<String, Long> compacted = new HashMap<>();
+		for (int i = 0; i < pathsAndLengths.length; i += 2) {
+			compacted.put((String) pathsAndLengths[i], (Long) pathsAndLengths[i + 1]);
+		}
+		return compacted;
+	}
+
+	@Test
+	public void loadManifestsRecoversCompactedFiles() throws IOException {
+		write("batch-1000/part-00000.txt", "a\nb\n");
+		write("batch-1000/_manifest", "10\t/input/a.txt\n20\t/input/b.txt\n");
+		write("batch-2000/part-00000.txt", "c\n");
+		write("batch-2000/_manifest", "30\t/input/c.txt\n");
+		// Only committed batches count, staging directories are left to recoverStaging.
+		write("_incoming-batch-3000/part-00000.txt", "d\n");
+		write("_incoming-batch-3000/_manifest", "40\t/input/d.txt\n");
+
+		compaction.loadManifests(fs);
+		assertEquals(compacted("/input/a.txt", 10L, "/input/b.txt", 20L, "/input/c.txt", 30L), compaction.getCompacted());
+	}
+
+	@Test
+	public void recoverStagingCommitsBatchesWithManifest() throws IOException {
+		write("batch-1000/part-00000.txt", "a\n");
+		write("batch-1000/_manifest", "10\t/input/a.txt\n");
+		// Compacted before the crash, but not yet renamed.
+		write("_incoming-batch-2000/part-00000.txt", "b\n");
+		write("_incoming-batch-2000/_manifest", "20\t/input/b.txt\n");
+		// Crashed while compacting.
+		write("_incoming-batch-3000/part-00000.txt", "c\n");
+
+		compaction.loadManifests(fs);
+		compaction.recoverStaging(fs);
+
+		assertEquals(compacted("/input/a.txt", 10L, "/input/b.txt", 20L), compaction.getCompacted());
+		assertTrue(fs.exists(new Path(output, "batch-2000/part-00000.txt")));
+		assertFalse(fs.exists(new Path(output, "_incoming-batch-2000")));
+		assertFalse(fs.exists(new Path(output, "_incoming-batch-3000")));
+		assertFalse(fs.exists(new Path(output, "batch-3000")));
+
+		// The next start finds the recovered batch like any other.
+		compaction.loadManifests(fs);
+		assertEquals(compacted("/input/a.txt", 10L, "/input/b.txt", 20L), compaction.getCompacted());
+	}
+}
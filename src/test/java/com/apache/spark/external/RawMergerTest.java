@@ -0,0 +1,340 @@
+package com.apache.spark.external;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.parquet.column.ParquetProperties;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.example.data.simple.SimpleGroupFactory;
+import org.apache.parquet.format.converter.ParquetMetadataConverter;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.ParquetOutputFormat;
+import org.apache.parquet.hadoop.ParquetReader;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.example.GroupReadSupport;
+import org.apache.parquet.hadoop.example.GroupWriteSupport;
+import org.apache.parquet.hadoop.metadata.BlockMetaData;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.MessageTypeParser;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class RawMergerTest {
+
+	private static final MessageType PARQUET_SCHEMA = MessageTypeParser.parseMessageType(
+			"message record { required int64 id; required binary name (UTF8); }");
+	private static final MessageType OTHER_PARQUET_SCHEMA = MessageTypeParser.parseMessageType(
+			"message record { required int64 id; required binary label (UTF8); }");
+	private static final long SMALL_BLOCK_SIZE = 256;
+	private static final Schema AVRO_SCHEMA = SchemaBuilder.record("record").fields()
+			.requiredLong("id").requiredString("name").endRecord();
+	private static final Schema OTHER_AVRO_SCHEMA = SchemaBuilder.record("record").fields()
+			.requiredLong("id").requiredString("label").endRecord();
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Configuration conf;
+	private FileSystem fs;
+
+	@Before
+	public void setUp() throws IOException {
+		conf = new Configuration();
+		fs = FileSystem.getLocal(conf);
+	}
+
+	private Path path(String name) {
+		return new Path(folder.getRoot().toURI().toString(), name);
+	}
+
+	private static List<String> paths(Path... paths) {
+		List<String> strings = new ArrayList<>();
+		for (Path path : paths) {
+			strings.add(path.toString());
+		}
+		return strings;
+	}
+
+	private String merge(String serialization, String codec, Path output, Path... inputs) throws IOException {
+		return new RawMerger(conf, serialization, codec).call(new RawMerger.Task(paths(inputs), output.toString()));
+	}
+
+	private Path writeParquet(String name, MessageType schema, CompressionCodecName codec, int first, int count) throws IOException {
+		Path path = path(name);
+		Configuration writeConf = new Configuration(conf);
+		GroupWriteSupport.setSchema(schema, writeConf);
+		SimpleGroupFactory groups = new SimpleGroupFactory(schema);
+		try (ParquetWriter<Group> writer = new ParquetWriter<>(path, new GroupWriteSupport(), codec,
+				ParquetWriter.DEFAULT_BLOCK_SIZE, ParquetWriter.DEFAULT_PAGE_SIZE, ParquetWriter.DEFAULT_PAGE_SIZE,
+				ParquetWriter.DEFAULT_IS_DICTIONARY_ENABLED, ParquetWriter.DEFAULT_IS_VALIDATING_ENABLED,
+				ParquetProperties.WriterVersion.PARQUET_1_0, writeConf)) {
+			for (int i = first; i < first + count; i++) {
+				writer.write(groups.newGroup().append(schema.getFieldName(0), (long) i).append(schema.getFieldName(1), "record-" + i));
+			}
+		}
+		return path;
+	}
+
+	private List<String> readParquet(Path... paths) throws IOException {
+		List<String> records = new ArrayList<>();
+		for (Path path : paths) {
+			try (ParquetReader<Group> reader = ParquetReader.builder(new GroupReadSupport(), path).withConf(conf).build()) {
+				Group group;
+				while ((group = reader.read()) != null) {
+					records.add(group.toString());
+				}
+			}
+		}
+		return records;
+	}
+
+	// Row groups and rows in the footers of the given files, in this order.
+	private long[] parquetBlocks(Path... paths) throws IOException {
+		long[] blocks = new long[2];
+		for (Path path : paths) {
+			for (BlockMetaData block : ParquetFileReader.readFooter(conf, path, ParquetMetadataConverter.NO_FILTER).getBlocks()) {
+				blocks[0]++;
+				blocks[1] += block.getRowCount();
+			}
+		}
+		return blocks;
+	}
+
+	private Path writeAvro(String name, Schema schema, String codec, int first, int count) throws IOException {
+		Path path = path(name);
+		try (DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(schema))) {
+			writer.setCodec(CodecFactory.fromString(codec));
+			// A small sync interval gives every file several blocks to append.
+			writer.setSyncInterval(64);
+			writer.create(schema, fs.create(path, false));
+			for (int i = first; i < first + count; i++) {
+				GenericRecord record = new GenericData.Record(schema);
+				record.put(0, (long) i);
+				record.put(1, "record-" + i);
+				writer.append(record);
+			}
+		}
+		return path;
+	}
+
+	private List<String> readAvro(Path... paths) throws IOException {
+		List<String> records = new ArrayList<>();
+		for (Path path : paths) {
+			try (DataFileStream<GenericRecord> in = new DataFileStream<>(fs.open(path), new GenericDatumReader<GenericRecord>())) {
+				for (GenericRecord record : in) {
+					records.add(record.toString());
+				}
+			}
+		}
+		return records;
+	}
+
+	// Writes the given lines compressed with the codec that matches the file name.
+	private Path writeText(String name, String content) throws IOException {
+		Path path = path(name);
+		CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(path);
+		try (OutputStream out = codec.createOutputStream(fs.create(path, false))) {
+			out.write(content.getBytes(StandardCharsets.UTF_8));
+		}
+		return path;
+	}
+
+	private List<String> readText(Path... paths) throws IOException {
+		List<String> lines = new ArrayList<>();
+		for (Path path : paths) {
+			CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(path);
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(codec.createInputStream(fs.open(path)), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = in.readLine()) != null) {
+					lines.add(line);
+				}
+			}
+		}
+		return lines;
+	}
+
+	private static String lines(int first, int count) {
+		StringBuilder lines = new StringBuilder();
+		for (int i = first; i < first + count; i++) {
+			lines.append("record-").append(i).append('\n');
+		}
+		return lines.toString();
+	}
+
+	@Test
+	public void attemptOutputIsOutputOutsideOfTask() {
+		RawMerger.Task task = new RawMerger.Task(Arrays.asList("/input/a", "/input/b"), "/output/part-00000.parquet");
+		assertEquals(new Path("/output/part-00000.parquet"), task.getAttemptOutput());
+	}
+
+	@Test
+	public void mergesParquetRowGroups() throws IOException {
+		conf.setLong(ParquetOutputFormat.BLOCK_SIZE, SMALL_BLOCK_SIZE);
+		// codec name, codec of the inputs
+		Object[][] cases = {
+				{"uncompressed", CompressionCodecName.UNCOMPRESSED},
+				{"gzip", CompressionCodecName.GZIP},
+		};
+		for (Object[] c : cases) {
+			String codec = (String) c[0];
+			Path first = writeParquet(codec + "-0.parquet", PARQUET_SCHEMA, (CompressionCodecName) c[1], 0, 100);
+			Path second = writeParquet(codec + "-1.parquet", PARQUET_SCHEMA, (CompressionCodecName) c[1], 100, 50);
+			Path third = writeParquet(codec + "-2.parquet", PARQUET_SCHEMA, (CompressionCodecName) c[1], 150, 200);
+			Path output = path("merged-" + codec + ".parquet");
+
+			assertEquals(output.toString(), merge("parquet", codec, output, first, second, third));
+			assertEquals(readParquet(first, second, third), readParquet(output));
+			assertArrayEquals(parquetBlocks(first, second, third), parquetBlocks(output));
+			assertEquals(350L, parquetBlocks(output)[1]);
+		}
+	}
+
+	@Test
+	public void parquetFallsBackToRewrite() throws IOException {
+		conf.setLong(ParquetOutputFormat.BLOCK_SIZE, SMALL_BLOCK_SIZE);
+		Path plain = writeParquet("plain.parquet", PARQUET_SCHEMA, CompressionCodecName.UNCOMPRESSED, 0, 100);
+		Path other = writeParquet("other.parquet", PARQUET_SCHEMA, CompressionCodecName.UNCOMPRESSED, 100, 100);
+		Path gzip = writeParquet("gzip.parquet", PARQUET_SCHEMA, CompressionCodecName.GZIP, 100, 100);
+		Path renamed = writeParquet("renamed.parquet", OTHER_PARQUET_SCHEMA, CompressionCodecName.UNCOMPRESSED, 100, 100);
+
+		// codec name, inputs
+		Object[][] cases = {
+				// Schema mismatch
+				{"uncompressed", new Path[]{plain, renamed}},
+				// Codec mismatch, within the group and with the output
+				{"uncompressed", new Path[]{plain, gzip}},
+				{"gzip", new Path[]{plain, other}},
+		};
+		for (int i = 0; i < cases.length; i++) {
+			Path output = path("fallback-" + i + ".parquet");
+			assertNull(merge("parquet", (String) cases[i][0], output, (Path[]) cases[i][1]));
+			assertFalse(fs.exists(output));
+		}
+	}
+
+	@Test
+	public void parquetWithSmallRowGroupsIsRewritten() throws IOException {
+		// Row groups of a few KB are far below a quarter of the default parquet.block.size.
+		Path first = writeParquet("small-0.parquet", PARQUET_SCHEMA, CompressionCodecName.UNCOMPRESSED, 0, 100);
+		Path second = writeParquet("small-1.parquet", PARQUET_SCHEMA, CompressionCodecName.UNCOMPRESSED, 100, 100);
+		Path output = path("small.parquet");
+
+		assertNull(merge("parquet", "uncompressed", output, first, second));
+		assertFalse(fs.exists(output));
+
+		conf.setLong(ParquetOutputFormat.BLOCK_SIZE, SMALL_BLOCK_SIZE);
+		assertEquals(output.toString(), merge("parquet", "uncompressed", output, first, second));
+	}
+
+	@Test
+	public void mergesAvroBlocks() throws IOException {
+		for (String codec : new String[]{"null", "deflate", "bzip2"}) {
+			Path first = writeAvro(codec + "-0.avro", AVRO_SCHEMA, codec, 0, 100);
+			Path second = writeAvro(codec + "-1.avro", AVRO_SCHEMA, codec, 100, 1);
+			Path third = writeAvro(codec + "-2.avro", AVRO_SCHEMA, codec, 101, 200);
+			Path output = path("merged-" + codec + ".avro");
+
+			assertEquals(output.toString(), merge("avro", codec, output, first, second, third));
+			List<String> records = readAvro(output);
+			assertEquals(readAvro(first, second, third), records);
+			assertEquals(301, records.size());
+		}
+	}
+
+	@Test
+	public void avroFallsBackToRewrite() throws IOException {
+		Path plain = writeAvro("plain.avro", AVRO_SCHEMA, "null", 0, 100);
+		Path other = writeAvro("other.avro", AVRO_SCHEMA, "null", 100, 100);
+		Path deflate = writeAvro("deflate.avro", AVRO_SCHEMA, "deflate", 100, 100);
+		Path renamed = writeAvro("renamed.avro", OTHER_AVRO_SCHEMA, "null", 100, 100);
+
+		// codec name, inputs
+		Object[][] cases = {
+				// Schema mismatch
+				{"null", new Path[]{plain, renamed}},
+				// Codec mismatch, within the group and with the output
+				{"null", new Path[]{plain, deflate}},
+				{"deflate", new Path[]{plain, other}},
+		};
+		for (int i = 0; i < cases.length; i++) {
+			Path output = path("fallback-" + i + ".avro");
+			assertNull(merge("avro", (String) cases[i][0], output, (Path[]) cases[i][1]));
+			assertFalse(fs.exists(output));
+		}
+	}
+
+	@Test
+	public void concatenatesCompressedText() throws IOException {
+		// codec name, file extension
+		String[][] cases = {
+				{"gzip", ".gz"},
+				{"bzip2", ".bz2"},
+		};
+		for (String[] c : cases) {
+			Path first = writeText(c[0] + "-0.txt" + c[1], lines(0, 100));
+			Path second = writeText(c[0] + "-1.txt" + c[1], lines(100, 1));
+			Path third = writeText(c[0] + "-2.txt" + c[1], lines(101, 999));
+			Path output = path("merged-" + c[0] + ".txt" + c[1]);
+
+			assertEquals(output.toString(), merge("text", c[0], output, first, second, third));
+			List<String> lines = readText(output);
+			assertEquals(readText(first, second, third), lines);
+			assertEquals(1100, lines.size());
+		}
+	}
+
+	@Test
+	public void textFallsBackToRewrite() throws IOException {
+		Path gzip = writeText("plain.txt.gz", lines(0, 100));
+		Path bzip2 = writeText("plain.txt.bz2", lines(100, 100));
+		Path unterminated = writeText("unterminated.txt.gz", "record-200\nrecord-201");
+		Path other = writeText("other.txt.gz", lines(300, 100));
+
+		// codec name, inputs
+		Object[][] cases = {
+				// Codec mismatch, within the group and with the output
+				{"gzip", new Path[]{gzip, bzip2}},
+				{"bzip2", new Path[]{gzip, other}},
+				// The last line of the first file would be joined to the first line of the next one
+				{"gzip", new Path[]{unterminated, other}},
+		};
+		for (int i = 0; i < cases.length; i++) {
+			Path output = path("fallback-" + i + ".txt.gz");
+			assertNull(merge("text", (String) cases[i][0], output, (Path[]) cases[i][1]));
+			assertFalse(fs.exists(output));
+		}
+
+		// Only the last file may end without a line terminator.
+		Path output = path("unterminated-last.txt.gz");
+		assertEquals(output.toString(), merge("text", "gzip", output, other, unterminated));
+		assertEquals(readText(other, unterminated), readText(output));
+	}
+}